@@ -0,0 +1,362 @@
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Client side of the chat protocol, shared by the console client, bots and load tests. It owns the
+// connection: login or token resume, compression, reconnects after a drop and moves to a new server
+// on MIGRATE. Callers get a future back from every call and see server lines through a Listener.
+public class ChatClient implements AutoCloseable {
+    private static final int MAX_RECONNECT_ATTEMPTS = 5;
+    private static final long RECONNECT_DELAY_MS = 2000;
+    private static final int MAX_PENDING = 1024;
+
+    public interface Listener {
+        /** A line from the server, already decompressed; it may contain several text lines. */
+        void onMessage(String message);
+
+        /** Authenticated on a new connection, by password or by resuming the token. */
+        default void onConnected(boolean resumed) {
+        }
+
+        /** A new session token was issued; persist it to resume later. */
+        default void onToken(String token) {
+        }
+
+        /** The connection dropped or the server asked us to move; a reconnect with the token follows. */
+        default void onReconnecting(String reason) {
+        }
+
+        /** The token was refused while reconnecting; call {@link #login} to start a new session. */
+        default void onSessionLost() {
+        }
+
+        /** Closed for good: by the caller, by /quit, or because the server stayed unreachable. */
+        default void onClosed(String reason) {
+        }
+    }
+
+    /** The server refused a login or resume; the message is its reply (AUTH_FAILED, AUTH_BUSY, TOKEN_INVALID). */
+    public static class AuthException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public AuthException(String reply) {
+            super(reply);
+        }
+    }
+
+    // a line sent while no connection was up; written as soon as the next one is
+    private static final class Outgoing {
+        final String line;
+        final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        Outgoing(String line) {
+            this.line = line;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final SSLSocketFactory factory;
+    private final Listener listener;
+
+    private final Object lock = new Object();
+    private SSLSocket sock;         // guarded by lock; null while (re)connecting
+    private PrintWriter out;        // guarded by lock
+    private final ArrayDeque<Outgoing> pending = new ArrayDeque<>();
+    private volatile String token;
+    private volatile boolean closed;
+    // the token a /quit was sent for, until the connection ends; a draining server leaves the logout to us
+    private volatile String quitToken;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    public ChatClient(String host, int port, Listener listener) {
+        this(host, port, (SSLSocketFactory) SSLSocketFactory.getDefault(), listener);
+    }
+
+    public ChatClient(String host, int port, SSLSocketFactory factory, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.factory = factory;
+        this.listener = listener;
+    }
+
+    /** Logs in (registering the name if it is new) and completes with the session token. */
+    public CompletableFuture<String> login(String user, String password) {
+        return open("/login " + user + " " + password, false);
+    }
+
+    /** Resumes the session behind {@code token}; fails with AuthException if it is no longer valid. */
+    public CompletableFuture<String> resume(String token) {
+        this.token = token;
+        return open("/token " + token, true);
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public CompletableFuture<Void> join(String room) {
+        return send("/join " + room);
+    }
+
+    public CompletableFuture<Void> leave(String room) {
+        return send("/leave " + room);
+    }
+
+    /** Posts to the active room. */
+    public CompletableFuture<Void> chat(String text) {
+        return send(text);
+    }
+
+    public CompletableFuture<Void> msg(String user, String text) {
+        return send("/msg " + user + " " + text);
+    }
+
+    /**
+     * Sends a raw protocol line. Completes once it is written, which during a reconnect means once the
+     * new connection is up; the server's answer, if any, arrives through the listener.
+     */
+    public CompletableFuture<Void> send(String line) {
+        synchronized (lock) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("client closed"));
+            }
+            if (out == null) {
+                if (pending.size() >= MAX_PENDING) {
+                    return CompletableFuture.failedFuture(new IOException("send queue full"));
+                }
+                Outgoing o = new Outgoing(line);
+                pending.add(o);
+                return o.sent;
+            }
+            out.println(line);
+            if (out.checkError()) {
+                return CompletableFuture.failedFuture(new IOException("connection lost"));
+            }
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /** Ends the session on the server (the token stops working) and completes when the connection closes. */
+    public CompletableFuture<Void> quit() {
+        boolean connected;
+        synchronized (lock) {
+            connected = sock != null;
+            if (connected && !closed) {
+                out.println("/quit");
+                quitToken = token;
+                token = null;
+            }
+            closed = true;
+        }
+        // otherwise the reader finishes once the server hangs up
+        if (!connected) {
+            finish("quit");
+        }
+        return done;
+    }
+
+    /** Completes when the client has closed for good. */
+    public CompletableFuture<Void> closed() {
+        return done;
+    }
+
+    @Override
+    public void close() {
+        SSLSocket s;
+        synchronized (lock) {
+            closed = true;
+            s = sock;
+        }
+        if (s != null) {
+            closeQuietly(s);
+        } else {
+            finish("closed");
+        }
+    }
+
+    private CompletableFuture<String> open(String hello, boolean resumed) {
+        CompletableFuture<String> f = new CompletableFuture<>();
+        Thread.startVirtualThread(() -> {
+            try {
+                connect(hello, resumed);
+                f.complete(token);
+            } catch (IOException | RuntimeException e) {
+                f.completeExceptionally(e);
+            }
+        });
+        return f;
+    }
+
+    // opens a connection and authenticates on it; on success a reader thread takes the connection over
+    private void connect(String hello, boolean resumed) throws IOException {
+        SSLSocket s = (SSLSocket) factory.createSocket(host, port);
+        try {
+            configureSocket(s);
+            // handshake outside PrintWriter's monitor, which would pin a virtual thread while it waits
+            s.startHandshake();
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            PrintWriter w = new PrintWriter(s.getOutputStream(), true);
+            w.println(hello);
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new EOFException("server closed the connection");
+            }
+            if (resumed ? !reply.startsWith("Resumed session") : !reply.startsWith("TOKEN ")) {
+                throw new AuthException(reply);
+            }
+            if (!resumed) {
+                token = reply.substring(6).trim();
+                listener.onToken(token);
+            }
+            w.println("/compress on " + PayloadCodec.DICTIONARY_ID);
+
+            List<Outgoing> flushed = new ArrayList<>();
+            synchronized (lock) {
+                if (closed) {
+                    throw new IOException("client closed");
+                }
+                sock = s;
+                out = w;
+                while (!pending.isEmpty()) {
+                    Outgoing o = pending.poll();
+                    w.println(o.line);
+                    flushed.add(o);
+                }
+            }
+            for (Outgoing o : flushed) {
+                o.sent.complete(null);
+            }
+            listener.onConnected(resumed);
+            Thread.startVirtualThread(() -> readLoop(s, in));
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(s);
+            throw e;
+        }
+    }
+
+    private void readLoop(SSLSocket s, BufferedReader in) {
+        String reason = "connection closed by server";
+        long migrateDelay = -1;
+        boolean quitRefused = false;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("DRAINING") && quitToken != null) {
+                    quitRefused = true;
+                    break;
+                }
+                if (line.startsWith("COMPRESS_")) {
+                    continue;
+                }
+                if (line.startsWith("MIGRATE ")) {
+                    migrateDelay = Long.parseLong(line.substring(8).trim());
+                    reason = "server restarting, reconnecting in " + migrateDelay + " ms";
+                    break;
+                }
+                if (PayloadCodec.isFrame(line)) {
+                    line = PayloadCodec.decode(line);
+                }
+                listener.onMessage(line);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            reason = e.getMessage();
+        }
+        synchronized (lock) {
+            if (sock == s) {
+                sock = null;
+                out = null;
+            }
+        }
+        closeQuietly(s);
+        if (quitRefused) {
+            quitElsewhere(quitToken);
+        }
+        if (closed) {
+            finish(reason);
+            return;
+        }
+        reconnect(reason, migrateDelay);
+    }
+
+    // the old server stopped listening, so this connection reaches the process that took over from it
+    private void quitElsewhere(String t) {
+        try (SSLSocket s = (SSLSocket) factory.createSocket(host, port)) {
+            configureSocket(s);
+            s.startHandshake();
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            PrintWriter w = new PrintWriter(s.getOutputStream(), true);
+            w.println("/token " + t);
+            String reply = in.readLine();
+            if (reply == null || !reply.startsWith("Resumed session")) {
+                return;
+            }
+            w.println("/quit");
+            while ((reply = in.readLine()) != null && !reply.equals("Goodbye!")) {
+                // rejoin notices and queued messages of the session being ended
+            }
+        } catch (IOException ignored) {
+            // no server took over: the token stays in the last snapshot until it expires
+        }
+    }
+
+    // runs on the reader thread of the connection that just ended
+    private void reconnect(String reason, long firstDelay) {
+        listener.onReconnecting(reason);
+        long delay = firstDelay >= 0 ? firstDelay : RECONNECT_DELAY_MS;
+        for (int attempt = 1; attempt <= MAX_RECONNECT_ATTEMPTS && !closed; attempt++) {
+            try {
+                Thread.sleep(delay);
+                connect("/token " + token, true);
+                return;
+            } catch (AuthException e) {
+                token = null;
+                listener.onSessionLost();
+                return;
+            } catch (IOException e) {
+                delay = RECONNECT_DELAY_MS;
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        boolean gaveUp = !closed;
+        closed = true;
+        finish(gaveUp ? "could not reconnect" : "closed");
+    }
+
+    private void finish(String reason) {
+        List<Outgoing> dropped;
+        synchronized (lock) {
+            dropped = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Outgoing o : dropped) {
+            o.sent.completeExceptionally(new IOException("client closed"));
+        }
+        if (done.complete(null)) {
+            listener.onClosed(reason);
+        }
+    }
+
+    static void configureSocket(SSLSocket sock) throws IOException {
+        sock.setEnabledProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
+        sock.setEnabledCipherSuites(new String[]{
+                "TLS_AES_256_GCM_SHA384",
+                "TLS_AES_128_GCM_SHA256",
+                "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+                "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"
+        });
+        sock.setKeepAlive(true);
+    }
+
+    private static void closeQuietly(SSLSocket s) {
+        try {
+            s.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -3,11 +3,18 @@ import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class ChatRoom {
+    // messages kept per room; older ones are dropped from the history and the search index together
+    private static final int HISTORY_SIZE = Math.max(1, Integer.getInteger("chat.history.size", 1000));
+
     private final String chatRoomName;
     private final String prompt;      // null for non-AI rooms
     private final boolean isAI;
     private final Set<String> users = new HashSet<>();
-    private final List<String> history = new ArrayList<>();
+    // ring of the last HISTORY_SIZE messages; the message with sequence id s lives at slot(s)
+    private final String[] history = new String[HISTORY_SIZE];
+    // long, so a busy room never wraps it
+    private long nextSeq;
+    private final SearchIndex index = new SearchIndex();
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
     public ChatRoom(String chatRoomName) {
@@ -80,7 +87,13 @@ public class ChatRoom {
     public void addMessage(String message) {
         lock.writeLock().lock();
         try {
-            history.add(message);
+            int slot = slot(nextSeq);
+            if (nextSeq >= HISTORY_SIZE) {
+                index.remove(nextSeq - HISTORY_SIZE, history[slot]);
+            }
+            history[slot] = message;
+            index.add(nextSeq, message);
+            nextSeq++;
         } finally {
             lock.writeLock().unlock();
         }
@@ -89,12 +102,36 @@ public class ChatRoom {
     public List<String> getHistory() {
         lock.readLock().lock();
         try {
-            return new ArrayList<>(history);
+            long first = firstSeq();
+            List<String> out = new ArrayList<>((int) (nextSeq - first));
+            for (long seq = first; seq < nextSeq; seq++) {
+                out.add(history[slot(seq)]);
+            }
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Ranked full-text search over the retained history. */
+    public SearchIndex.Page search(String query, int page, int pageSize) {
+        lock.readLock().lock();
+        try {
+            long first = firstSeq();
+            return index.search(query, first, (int) (nextSeq - first), page, pageSize, seq -> history[slot(seq)]);
         } finally {
             lock.readLock().unlock();
         }
     }
 
+    private long firstSeq() {
+        return Math.max(0, nextSeq - HISTORY_SIZE);
+    }
+
+    private static int slot(long seq) {
+        return Math.floorMod(seq, HISTORY_SIZE);
+    }
+
     public boolean isEmpty() {
         lock.readLock().lock();
         try {
@@ -1,80 +1,169 @@
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletionException;
 
+// Console front end over ChatClient: the main thread blocks on the console and every server event
+// arrives through the listener.
 public class Client {
-    private static String username;
-    private static String savedToken = null;
-    private static Path sessionFile;
-    private static final int MAX_RECONNECT_ATTEMPTS = 5;
-    private static final int RECONNECT_DELAY_MS = 2000;
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 9999;
-    private static volatile boolean done;
-    private static volatile boolean quit;
+    private static final BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+    private static String username;
+    private static Path sessionFile;
+    private static ChatClient client;
+    // set when the server refuses our token mid-session; the next console line is the password
+    private static volatile boolean passwordNeeded;
+    private static volatile boolean quitting;
 
     public static void main(String[] args) throws Exception {
-        BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
         System.out.println("=== Welcome :) ===");
         System.out.println();
 
         validateTLSConfiguration();
+        client = new ChatClient(SERVER_HOST, SERVER_PORT, new ConsoleListener());
 
-        if (!serverAvailable()) {
-            System.err.printf("ERROR: Cannot connect to server at %s:%d%n", SERVER_HOST, SERVER_PORT);
-            System.exit(1);
+        if (!startSession()) {
+            System.out.println("Goodbye!");
+            System.exit(0);
         }
-
-        // Login loop
-        while (savedToken == null) {
-            System.out.print("Enter your username: ");
-            username = console.readLine().trim();
-            sessionFile = Paths.get("session_" + username + ".token");
-            if (Files.exists(sessionFile)) {
-                savedToken = new String(Files.readAllBytes(sessionFile)).trim();
-                break;
+        printHelp();
+
+        String line;
+        while ((line = console.readLine()) != null) {
+            if (passwordNeeded) {
+                passwordNeeded = false;
+                if (!login(line.trim())) {
+                    System.out.print("Enter your password: ");
+                    passwordNeeded = true;
+                }
+                continue;
             }
-
-            if (!login(console, username)) {
-                System.out.println("Would you like to try again? (yes/no): ");
-                String retry = console.readLine().trim().toLowerCase();
-                if (!retry.equals("y") && !retry.equals("yes")) {
-                    System.out.println("Goodbye!");
+            switch (line.trim()) {
+                case "/help" -> printHelp();
+                case "/quit" -> {
+                    quitting = true;
+                    client.quit().join();
+                    Files.deleteIfExists(sessionFile);
+                    System.out.println("Session deleted and quit.");
                     System.exit(0);
                 }
-                System.out.println();
+                default -> client.send(line);
             }
         }
+        client.close();
+    }
 
-        while (true) {
+    private static class ConsoleListener implements ChatClient.Listener {
+        @Override
+        public void onMessage(String message) {
+            System.out.println(message);
+        }
+
+        @Override
+        public void onToken(String token) {
+            try {
+                Files.write(sessionFile, token.getBytes());
+            } catch (IOException e) {
+                System.err.println("Could not save session to " + sessionFile + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onReconnecting(String reason) {
+            System.err.println("Connection dropped: " + reason);
+            System.out.println("Reconnecting...");
+        }
+
+        @Override
+        public void onConnected(boolean resumed) {
+            if (resumed) {
+                System.out.println("Resumed session :)");
+            }
+        }
+
+        @Override
+        public void onSessionLost() {
+            System.err.println("Token invalid. Please login again.");
             try {
-                if (connectAndChat(console)) break;
-            } catch (Exception e) {
-                System.err.println("Connection dropped: " + e.getMessage());
-                System.out.println("Reconnecting...");
-                boolean ok = false;
-                for (int i = 1; i <= MAX_RECONNECT_ATTEMPTS; i++) {
-                    try {
-                        Thread.sleep(RECONNECT_DELAY_MS);
-                        System.out.println("Attempt " + i + "...");
-                        if (connectAndChat(console)) System.exit(0);
-                        ok = true;
-                        break;
-                    } catch (Exception ex) {
-                        System.err.println("  failed: " + ex.getMessage());
+                Files.deleteIfExists(sessionFile);
+            } catch (IOException ignored) {
+            }
+            System.out.print("Enter your password: ");
+            passwordNeeded = true;
+        }
+
+        @Override
+        public void onClosed(String reason) {
+            if (!quitting) {
+                System.err.println("Could not reconnect: " + reason);
+                System.exit(1);
+            }
+        }
+    }
+
+    // resumes a saved session or logs in; false if the user gives up
+    private static boolean startSession() throws IOException {
+        while (true) {
+            System.out.print("Enter your username: ");
+            String name = console.readLine();
+            if (name == null) {
+                return false;
+            }
+            username = name.trim();
+            sessionFile = Paths.get("session_" + username + ".token");
+            if (Files.exists(sessionFile)) {
+                String token = new String(Files.readAllBytes(sessionFile)).trim();
+                try {
+                    client.resume(token).join();
+                    return true;
+                } catch (CompletionException e) {
+                    if (!(e.getCause() instanceof ChatClient.AuthException)) {
+                        cannotConnect();
                     }
+                    System.err.println("Token invalid. Please login again.");
+                    Files.deleteIfExists(sessionFile);
                 }
-                if (!ok) {
-                    System.err.println("Could not reconnect.");
-                    break;
-                }
             }
+
+            System.out.print("Enter your password: ");
+            String pass = console.readLine();
+            if (pass != null && login(pass.trim())) {
+                return true;
+            }
+            System.out.println("Would you like to try again? (yes/no): ");
+            String retry = console.readLine();
+            if (retry == null || !(retry.trim().equalsIgnoreCase("y") || retry.trim().equalsIgnoreCase("yes"))) {
+                return false;
+            }
+            System.out.println();
         }
     }
 
+    private static boolean login(String pass) {
+        try {
+            client.login(username, pass).join();
+            System.out.println("\nLogged in successfully! Token saved to " + sessionFile + "\n");
+            return true;
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof ChatClient.AuthException)) {
+                cannotConnect();
+            }
+            if ("AUTH_BUSY".equals(e.getCause().getMessage())) {
+                System.err.println("Server is busy with other logins, please try again in a moment.");
+            } else {
+                System.err.println("Login failed: " + e.getCause().getMessage());
+            }
+            return false;
+        }
+    }
+
+    private static void cannotConnect() {
+        System.err.printf("ERROR: Cannot connect to server at %s:%d%n", SERVER_HOST, SERVER_PORT);
+        System.exit(1);
+    }
+
     private static void validateTLSConfiguration() {
         String trustStore = System.getProperty("javax.net.ssl.trustStore");
         String trustStorePassword = System.getProperty("javax.net.ssl.trustStorePassword");
@@ -111,147 +200,20 @@ public class Client {
         }
     }
 
-    private static boolean serverAvailable() {
-        try {
-            SSLSocketFactory sf = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            try (SSLSocket sock = (SSLSocket) sf.createSocket(SERVER_HOST, SERVER_PORT)) {
-                configureSocket(sock);
-            }
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
-    }
-
-    private static boolean login(BufferedReader console, String user) throws Exception {
-        System.out.print("Enter your password: ");
-        String pass = console.readLine().trim();
-
-        SSLSocketFactory sf = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        try (SSLSocket sock = (SSLSocket) sf.createSocket(SERVER_HOST, SERVER_PORT)) {
-            configureSocket(sock);
-            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-
-            out.println("/login " + user + " " + pass);
-            String resp = in.readLine();
-            if (resp != null && resp.startsWith("TOKEN ")) {
-                savedToken = resp.substring(6).trim();
-                Files.write(sessionFile, savedToken.getBytes());
-                System.out.println("\nLogged in successfully! Token saved to " + sessionFile + "\n");
-                return true;
-            } else {
-                System.err.println("Login failed: " + (resp != null ? resp : "No response from server"));
-                return false;
-            }
-        }
-    }
-
-    private static boolean connectAndChat(BufferedReader console) throws Exception {
-        done = false;
-        quit = false;
-
-        SSLSocketFactory sf = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        try (SSLSocket sock = (SSLSocket) sf.createSocket(SERVER_HOST, SERVER_PORT)) {
-            configureSocket(sock);
-            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-
-            out.println("/token " + savedToken);
-            String welcome = in.readLine();
-            if (welcome == null || welcome.equals("TOKEN_INVALID")) {
-                System.err.println("Token invalid. Please login again.");
-                Files.deleteIfExists(sessionFile);
-                savedToken = null;
-
-                // Start login retry loop
-                BufferedReader console2 = new BufferedReader(new InputStreamReader(System.in));
-                while (savedToken == null) {
-                    System.out.print("Enter your username: ");
-                    username = console2.readLine().trim();
-                    sessionFile = Paths.get("session_" + username + ".token");
-
-                    if (!login(console2, username)) {
-                        System.out.println("Would you like to try again? (y/n): ");
-                        String retry = console2.readLine().trim().toLowerCase();
-                        if (!retry.equals("y") && !retry.equals("yes")) {
-                            System.out.println("Goodbye!");
-                            return true;
-                        }
-                        System.out.println();
-                    }
-                }
-                return false;
-            }
-            System.out.println(welcome);
-
-            Thread reader = Thread.startVirtualThread(() -> {
-                try {
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        System.out.println(line);
-                    }
-                } catch (IOException e) {
-                    if (!done) System.err.println("Disconnected from server.");
-                } finally {
-                    done = true;
-                }
-            });
-
-            printHelp();
-            while (!done) {
-                if (!console.ready()) {
-                    Thread.sleep(100);
-                    continue;
-                }
-                String msg = console.readLine();
-                if (msg == null) {
-                    continue;
-                }
-
-                switch (msg.trim()) {
-                    case "/help":
-                        printHelp();
-                        continue;
-                    case "/quit":
-                        out.println("/quit");
-                        Files.deleteIfExists(sessionFile);
-                        System.out.println("Session deleted and quit.");
-                        quit = true;
-                        break;
-                    default:
-                        out.println(msg);
-                        continue;
-                }
-                break;
-            }
-
-            done = true;
-            return quit;
-        }
-    }
-
-    private static void configureSocket(SSLSocket sock) throws IOException {
-        sock.setEnabledProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
-        sock.setEnabledCipherSuites(new String[]{
-                "TLS_AES_256_GCM_SHA384",
-                "TLS_AES_128_GCM_SHA256",
-                "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
-                "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"
-        });
-        sock.setKeepAlive(true);
-    }
-
     private static void printHelp() {
         System.out.println();
         System.out.println("Commands:");
-        System.out.println("  /join <room>              — join or create a room");
+        System.out.println("  /join <room>              — join or create a room and make it active");
         System.out.println("  /join AI:<room>           — join or create a room with chat bot (default prompt)");
         System.out.println("  /join AI:<name>|<prompt>  — join or create a room with chat bot");
-        System.out.println("  /leave                    — leave current room");
+        System.out.println("  /leave [room]             — leave the active room (or the named one)");
         System.out.println("  /rooms                    — list all rooms");
+        System.out.println("  /who [room]               — list who is in a room");
+        System.out.println("  /msg <user> <text>        — send a private message");
+        System.out.println("  /search <room> <terms>    — search a room's history (add a page number for more)");
+        System.out.println("  /stats                    — show connection statistics");
         System.out.println("  /quit                     — exit client");
         System.out.println("  /help                     — show this list");
         System.out.println();
     }
-}
\ No newline at end of file
+}
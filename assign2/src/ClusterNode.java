@@ -0,0 +1,778 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Rooms are owned by nodes through a consistent-hash ring. A node with local members of a room
+// subscribes at the room's owner; published messages go to the owner, which relays them to every
+// other subscribed node. Links are plain TCP: both ends prove they hold the shared cluster secret
+// when a link opens, and every line after that carries an HMAC, but nothing is encrypted, so the
+// links belong on a private network or loopback.
+// The same links carry session replication: every node ships its session events to all peers
+// and sends a full snapshot to each peer when the link comes up. Private messages go through the
+// node that owns the recipient's name on the ring: it knows where they are connected and keeps
+// their mailbox while they are connected nowhere.
+public class ClusterNode {
+    public interface Listener {
+        void onRelay(String room, String msg, boolean record);
+    }
+
+    /** This node's side of private messages: its connections and its mailboxes. */
+    public interface DirectMessages {
+        /** Writes to the user's connections on this node; false if they have none. */
+        boolean deliver(String user, String msg);
+
+        void queue(String user, String msg);
+
+        List<String> drain(String user);
+
+        Collection<String> queuedUsers();
+
+        Collection<String> onlineUsers();
+    }
+
+    private static final int RETRY_DELAY_MS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final int MIN_SECRET_BYTES = 16;
+    // lines waiting for a peer's writer; a peer this far behind is dropped and dialled again
+    private static final int LINK_QUEUE_SIZE = Integer.getInteger("chat.cluster.queue", 8192);
+    // bytes of HMAC-SHA256 kept per line
+    private static final int TAG_BYTES = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final String selfId;
+    private final String selfAddress;
+    private final byte[] secret;
+    private final Map<String, String> peerAddresses = new ConcurrentHashMap<>();
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+    private final ConsistentHashRing ring = new ConsistentHashRing();
+    // rooms with at least one member on this node
+    private final Set<String> localRooms = ConcurrentHashMap.newKeySet();
+    // owner side: which other nodes want messages for a room
+    private final Map<String, Set<String>> subscribers = new ConcurrentHashMap<>();
+    // mailbox owner side: the nodes each user has a connection on, as announced by those nodes
+    private final Map<String, Set<String>> onlineAt = new ConcurrentHashMap<>();
+    // orders this node's ONLINE/OFFLINE announcements, so a login racing a logout is announced last
+    private final Object announceLock = new Object();
+    private volatile ServerSocket serverSocket;
+    // links peers opened to us, closed when a draining process hands the cluster port over
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private final Listener listener;
+    private final LongAdder relayedOut = new LongAdder();
+    private final LongAdder relayedIn = new LongAdder();
+    private final LongAdder replicated = new LongAdder();
+    private Supplier<List<String>> replicationSnapshot;
+    private Consumer<String> replicationSink;
+    private DirectMessages directMessages;
+
+    /**
+     * Builds a node from -Dchat.cluster.self=&lt;id&gt;, -Dchat.cluster.nodes=&lt;id&gt;=&lt;host&gt;:&lt;port&gt;,...
+     * and the shared secret in -Dchat.cluster.secret.file (or -Dchat.cluster.secret); returns null when
+     * clustering is not configured.
+     */
+    public static ClusterNode fromSystemProperties(Listener listener) {
+        String self = System.getProperty("chat.cluster.self");
+        String nodes = System.getProperty("chat.cluster.nodes");
+        if (self == null || self.isEmpty() || nodes == null || nodes.isEmpty()) {
+            return null;
+        }
+        Map<String, String> all = new ConcurrentHashMap<>();
+        for (String entry : nodes.split(",")) {
+            String[] p = entry.trim().split("=", 2);
+            if (p.length != 2) {
+                throw new IllegalArgumentException("Invalid cluster node: " + entry);
+            }
+            all.put(p[0].trim(), p[1].trim());
+        }
+        String selfAddress = all.remove(self);
+        if (selfAddress == null) {
+            throw new IllegalArgumentException("chat.cluster.nodes has no entry for " + self);
+        }
+        ClusterNode node = new ClusterNode(self, selfAddress, readSecret(), listener);
+        node.peerAddresses.putAll(all);
+        return node;
+    }
+
+    public ClusterNode(String selfId, String selfAddress, byte[] secret, Listener listener) {
+        if (secret.length < MIN_SECRET_BYTES) {
+            throw new IllegalArgumentException("Cluster secret must be at least " + MIN_SECRET_BYTES + " bytes");
+        }
+        this.selfId = selfId;
+        this.selfAddress = selfAddress;
+        this.secret = secret.clone();
+        this.listener = listener;
+    }
+
+    // a file keeps the secret out of the process list; the property is there for tests and loopback setups
+    private static byte[] readSecret() {
+        String file = System.getProperty("chat.cluster.secret.file");
+        if (file != null && !file.isEmpty()) {
+            try {
+                return Files.readString(Paths.get(file)).trim().getBytes(StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read chat.cluster.secret.file: " + e.getMessage(), e);
+            }
+        }
+        String secret = System.getProperty("chat.cluster.secret");
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("Cluster mode needs chat.cluster.secret.file or chat.cluster.secret");
+        }
+        return secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void setReplication(Supplier<List<String>> snapshot, Consumer<String> sink) {
+        this.replicationSnapshot = snapshot;
+        this.replicationSink = sink;
+    }
+
+    public void setDirectMessages(DirectMessages directMessages) {
+        this.directMessages = directMessages;
+    }
+
+    public void start() throws IOException {
+        ring.add(selfId);
+        ServerSocket ss = new ServerSocket();
+        ss.setReuseAddress(true);
+        ss.bind(parse(selfAddress));
+        serverSocket = ss;
+        Thread.startVirtualThread(() -> acceptLoop(ss));
+        for (String peer : peerAddresses.keySet()) {
+            Thread.startVirtualThread(() -> dialLoop(peer));
+        }
+        Log.info("Cluster node " + selfId + " listening on " + selfAddress);
+    }
+
+    /**
+     * Frees the cluster port for a process taking over and drops the links peers opened to us, so they
+     * redial the new process instead of relaying to this one while it drains.
+     */
+    public void stopAccepting() {
+        ServerSocket ss = serverSocket;
+        if (ss == null) {
+            return;
+        }
+        try {
+            ss.close();
+        } catch (IOException ignored) {
+        }
+        for (Socket sock : inbound) {
+            try {
+                sock.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public String getSelfId() {
+        return selfId;
+    }
+
+    public boolean owns(String room) {
+        return selfId.equals(ring.ownerOf(room));
+    }
+
+    public void subscribe(String room) {
+        if (localRooms.add(room)) {
+            sendSubscription("SUB", room);
+        }
+    }
+
+    public void unsubscribe(String room) {
+        if (localRooms.remove(room)) {
+            sendSubscription("UNSUB", room);
+        }
+    }
+
+    /** Hands a message that was already delivered locally to the rest of the cluster. */
+    public void publish(String room, String msg, boolean record) {
+        String owner = ring.ownerOf(room);
+        if (selfId.equals(owner)) {
+            relay(selfId, room, msg, record);
+        } else {
+            send(owner, "PUB " + flag(record) + " " + escape(room) + " " + escape(msg));
+        }
+    }
+
+    /** The user has a connection on this node; tells the node that owns their mailbox. */
+    public void userOnline(String user) {
+        synchronized (announceLock) {
+            if (!toMailboxOwner(user, "ONLINE " + escape(user))) {
+                online(selfId, user);
+            }
+        }
+    }
+
+    /** The user's last connection here may have closed; rechecked under the lock so a racing login wins. */
+    public void userOffline(String user, BooleanSupplier stillOffline) {
+        synchronized (announceLock) {
+            if (stillOffline.getAsBoolean() && !toMailboxOwner(user, "OFFLINE " + escape(user))) {
+                offline(selfId, user);
+            }
+        }
+    }
+
+    /** A private message for a user with no connection here; their mailbox owner delivers or queues it. */
+    public void directMessage(String user, String msg) {
+        if (!toMailboxOwner(user, "DM " + escape(user) + " " + escape(msg))) {
+            route(user, msg);
+        }
+    }
+
+    // false when this node owns the mailbox, or the owner is unreachable and this node stands in for it
+    private boolean toMailboxOwner(String user, String line) {
+        String owner = ring.ownerOf(mailboxKey(user));
+        return !selfId.equals(owner) && send(owner, line);
+    }
+
+    private static String mailboxKey(String user) {
+        return "@" + user;
+    }
+
+    // mailbox owner side: hand the message to every node the user is on, or queue it if there is none.
+    // Only the lookup and the queueing run inside compute, which holds the user's bin; the sends follow it
+    private void route(String user, String msg) {
+        List<String> targets = new ArrayList<>(1);
+        onlineAt.compute(user, (u, nodes) -> {
+            if (nodes == null) {
+                directMessages.queue(u, msg);
+                return null;
+            }
+            targets.addAll(nodes);
+            return nodes;
+        });
+        for (String node : targets) {
+            deliverAt(node, user, msg);
+        }
+    }
+
+    private void online(String node, String user) {
+        List<String> waiting = new ArrayList<>();
+        onlineAt.compute(user, (u, nodes) -> {
+            Set<String> next = nodes == null ? ConcurrentHashMap.newKeySet() : nodes;
+            next.add(node);
+            waiting.addAll(directMessages.drain(u));
+            return next;
+        });
+        // whatever waited while they were away goes to the node they came back on
+        for (String msg : waiting) {
+            deliverAt(node, user, msg);
+        }
+    }
+
+    private void offline(String node, String user) {
+        onlineAt.computeIfPresent(user, (u, nodes) -> {
+            nodes.remove(node);
+            return nodes.isEmpty() ? null : nodes;
+        });
+    }
+
+    private void deliverAt(String node, String user, String msg) {
+        boolean handed = selfId.equals(node)
+                ? directMessages.deliver(user, msg)
+                : send(node, "DMTO " + escape(user) + " " + escape(msg));
+        if (!handed) {
+            queue(user, msg);
+        }
+    }
+
+    // queued under the user's bin, so a login announced meanwhile either drains it or comes after it
+    private void queue(String user, String msg) {
+        onlineAt.compute(user, (u, nodes) -> {
+            directMessages.queue(u, msg);
+            return nodes;
+        });
+    }
+
+    public void replicate(String event) {
+        String line = "REPL " + escape(event);
+        for (String node : links.keySet()) {
+            send(node, line);
+        }
+    }
+
+    // owner side: fan the message out to every subscribed node except the one it came from
+    private void relay(String origin, String room, String msg, boolean record) {
+        Set<String> subs = subscribers.get(room);
+        if (subs != null) {
+            String line = "MSG " + flag(record) + " " + escape(room) + " " + escape(msg);
+            for (String node : subs) {
+                if (!node.equals(origin)) {
+                    send(node, line);
+                }
+            }
+        }
+        if (!origin.equals(selfId) && localRooms.contains(room)) {
+            relayedIn.increment();
+            listener.onRelay(room, msg, record);
+        }
+    }
+
+    private void sendSubscription(String verb, String room) {
+        String owner = ring.ownerOf(room);
+        if (!selfId.equals(owner)) {
+            send(owner, verb + " " + escape(room));
+        }
+    }
+
+    // false when the line will not go out: no link, or the link failed or is too far behind
+    private boolean send(String node, String line) {
+        PeerLink link = links.get(node);
+        if (link == null || !link.send(line)) {
+            return false;
+        }
+        relayedOut.increment();
+        return true;
+    }
+
+    // lines a failed link never wrote: private messages fall back to a mailbox, the rest is made good by
+    // the resubscription and resync that follow when the link comes back
+    private void unsent(String line) {
+        String[] p = line.split(" ", 3);
+        switch (p[0]) {
+            case "DM" -> route(unescape(p[1]), unescape(p[2]));
+            case "DMTO" -> queue(unescape(p[1]), unescape(p[2]));
+            default -> {
+            }
+        }
+    }
+
+    // ownership moved: drop subscriber sets for rooms we no longer own and re-register our own rooms
+    // the same for mailboxes: pass on the ones we no longer own and announce our users to their owners
+    private void rebalance() {
+        subscribers.keySet().removeIf(room -> !owns(room));
+        for (String room : localRooms) {
+            sendSubscription("SUB", room);
+        }
+        if (directMessages != null) {
+            onlineAt.keySet().removeIf(user -> !owns(mailboxKey(user)));
+            for (String user : List.copyOf(directMessages.queuedUsers())) {
+                if (!owns(mailboxKey(user))) {
+                    for (String msg : directMessages.drain(user)) {
+                        directMessage(user, msg);
+                    }
+                }
+            }
+            for (String user : List.copyOf(directMessages.onlineUsers())) {
+                userOnline(user);
+            }
+        }
+        Log.info("Cluster membership changed: " + ring.getNodes());
+    }
+
+    private void peerUp(String node, PeerLink link) {
+        // a fresh link may follow a restart on either side, so always resync the sessions; the snapshot
+        // can be far larger than the link's queue, so this waits for room instead of overflowing it
+        if (replicationSnapshot != null) {
+            for (String event : replicationSnapshot.get()) {
+                if (!link.put("REPL " + escape(event))) {
+                    break;
+                }
+                relayedOut.increment();
+            }
+        }
+        if (ring.add(node)) {
+            rebalance();
+        }
+    }
+
+    // a peer that dials us again may have dropped its old link, and with it our subscriptions and online
+    // users there, even though our own link to it stayed up; announce them again
+    private void peerRedialed(String node) {
+        for (String room : localRooms) {
+            if (node.equals(ring.ownerOf(room))) {
+                send(node, "SUB " + escape(room));
+            }
+        }
+        if (directMessages != null) {
+            for (String user : List.copyOf(directMessages.onlineUsers())) {
+                if (node.equals(ring.ownerOf(mailboxKey(user)))) {
+                    userOnline(user);
+                }
+            }
+        }
+    }
+
+    private void peerDown(String node) {
+        for (Set<String> subs : subscribers.values()) {
+            subs.remove(node);
+        }
+        for (String user : List.copyOf(onlineAt.keySet())) {
+            offline(node, user);
+        }
+        if (ring.remove(node)) {
+            rebalance();
+        }
+    }
+
+    // outgoing link to a peer; the peer never writes back, so a read returning -1 means it went away
+    private void dialLoop(String node) {
+        while (true) {
+            String address = peerAddresses.get(node);
+            try (Socket sock = new Socket()) {
+                sock.connect(parse(address), RETRY_DELAY_MS);
+                sock.setTcpNoDelay(true);
+                sock.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                InputStream in = sock.getInputStream();
+                PrintWriter out = new PrintWriter(
+                        new BufferedWriter(new OutputStreamWriter(sock.getOutputStream())), true);
+                // the peer challenges us, we answer and challenge it back in the same line
+                String challenge = readLine(in);
+                if (challenge == null || !challenge.startsWith("CHALLENGE ")) {
+                    throw new IOException("no challenge from " + node);
+                }
+                String theirNonce = challenge.substring(10).trim();
+                String ourNonce = nonce();
+                out.println("HELLO " + selfId + " " + selfAddress + " " + ourNonce + " "
+                        + tag(secret, "HELLO", selfId, selfAddress, theirNonce, ourNonce));
+                String welcome = readLine(in);
+                if (welcome == null || !welcome.startsWith("WELCOME ")
+                        || !tagMatches(welcome.substring(8).trim(), secret, "WELCOME", node, theirNonce, ourNonce)) {
+                    Log.warn("Cluster peer " + node + " at " + address + " failed authentication");
+                    throw new IOException("peer failed authentication");
+                }
+                sock.setSoTimeout(0);
+                PeerLink link = new PeerLink(node, sock, new LineMac(secret, theirNonce, ourNonce), this::unsent);
+                links.put(node, link);
+                peerUp(node, link);
+                while (in.read() != -1) {
+                    // nothing is expected on this direction after the handshake
+                }
+            } catch (IOException ignored) {
+                // peer not reachable yet, retry below
+            }
+            PeerLink link = links.remove(node);
+            if (link != null) {
+                link.close();
+                peerDown(node);
+            }
+            try {
+                Thread.sleep(RETRY_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void acceptLoop(ServerSocket ss) {
+        while (!ss.isClosed()) {
+            try {
+                Socket sock = ss.accept();
+                sock.setTcpNoDelay(true);
+                inbound.add(sock);
+                Thread.startVirtualThread(() -> readLoop(sock));
+            } catch (IOException e) {
+                if (!ss.isClosed()) {
+                    Log.error("Cluster accept error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket sock) {
+        String peer = null;
+        try (sock; BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()))) {
+            PrintWriter out = new PrintWriter(
+                    new BufferedWriter(new OutputStreamWriter(sock.getOutputStream())), true);
+            sock.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            String ourNonce = nonce();
+            out.println("CHALLENGE " + ourNonce);
+            String line = in.readLine();
+            if (line == null || !line.startsWith("HELLO ")) return;
+            // HELLO <id> <address> <nonce> <tag>
+            String[] hello = line.split(" ", 5);
+            // membership is fixed by chat.cluster.nodes; anyone else could otherwise take rooms off the ring
+            if (hello.length < 5 || !peerAddresses.containsKey(hello[1])) {
+                Log.warn("Rejected cluster link from " + sock.getRemoteSocketAddress() + ": unknown node "
+                        + (hello.length < 2 ? "" : hello[1]));
+                return;
+            }
+            String theirNonce = hello[3];
+            if (!tagMatches(hello[4], secret, "HELLO", hello[1], hello[2], ourNonce, theirNonce)) {
+                Log.warn("Rejected cluster link from " + sock.getRemoteSocketAddress() + ": bad credentials for "
+                        + hello[1]);
+                return;
+            }
+            peer = hello[1];
+            out.println("WELCOME " + tag(secret, "WELCOME", selfId, ourNonce, theirNonce));
+            sock.setSoTimeout(0);
+            peerRedialed(peer);
+            LineMac mac = new LineMac(secret, ourNonce, theirNonce);
+            while ((line = in.readLine()) != null) {
+                // <tag> <line>; one forged, replayed or reordered line and the link is dropped
+                int sp = line.indexOf(' ');
+                if (sp < 0 || !mac.verify(line.substring(sp + 1), line.substring(0, sp))) {
+                    Log.warn("Dropped cluster link from " + peer + ": unauthenticated line");
+                    return;
+                }
+                handle(peer, line.substring(sp + 1));
+            }
+        } catch (IOException e) {
+            Log.warn("Cluster link from " + peer + " closed: " + e.getMessage());
+        } finally {
+            inbound.remove(sock);
+        }
+    }
+
+    private void handle(String peer, String line) {
+        String[] p = line.split(" ", 4);
+        switch (p[0]) {
+            case "SUB" -> subscribers.computeIfAbsent(unescape(p[1]), r -> ConcurrentHashMap.newKeySet()).add(peer);
+            case "UNSUB" -> {
+                Set<String> subs = subscribers.get(unescape(p[1]));
+                if (subs != null) subs.remove(peer);
+            }
+            case "PUB" -> relay(peer, unescape(p[2]), unescape(p[3]), p[1].equals("h"));
+            case "REPL" -> {
+                if (replicationSink != null) {
+                    replicated.increment();
+                    replicationSink.accept(unescape(p[1]));
+                }
+            }
+            case "ONLINE" -> online(peer, unescape(p[1]));
+            case "OFFLINE" -> offline(peer, unescape(p[1]));
+            case "DM" -> directMessage(unescape(p[1]), unescape(p[2]));
+            case "DMTO" -> {
+                // the user left this node before the message got here; the owner tries again
+                String user = unescape(p[1]);
+                String msg = unescape(p[2]);
+                if (!directMessages.deliver(user, msg) && !toMailboxOwner(user, "DMBACK " + p[1] + " " + p[2])) {
+                    route(user, msg);
+                }
+            }
+            case "DMBACK" -> {
+                offline(peer, unescape(p[1]));
+                route(unescape(p[1]), unescape(p[2]));
+            }
+            case "MSG" -> {
+                relayedIn.increment();
+                listener.onRelay(unescape(p[2]), unescape(p[3]), p[1].equals("h"));
+            }
+            default -> Log.warn("Unknown cluster message from " + peer + ": " + p[0]);
+        }
+    }
+
+    public String summary() {
+        return String.format("cluster: node %s, members %s, relayed out %d, in %d, session events applied %d",
+                selfId, ring.getNodes(), relayedOut.sum(), relayedIn.sum(), replicated.sum());
+    }
+
+    private static String nonce() {
+        byte[] b = new byte[16];
+        RANDOM.nextBytes(b);
+        return HEX.formatHex(b);
+    }
+
+    private static String tag(byte[] key, String... fields) {
+        Mac mac = hmac(key);
+        for (String f : fields) {
+            mac.update(f.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+        }
+        return HEX.formatHex(mac.doFinal(), 0, TAG_BYTES);
+    }
+
+    private static boolean tagMatches(String given, byte[] key, String... fields) {
+        return MessageDigest.isEqual(given.getBytes(StandardCharsets.US_ASCII),
+                tag(key, fields).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static Mac hmac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the handshake lines are short ASCII; read byte by byte so nothing after them is buffered away
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (sb.length() > 512) {
+                throw new IOException("handshake line too long");
+            }
+            sb.append((char) c);
+        }
+        return c == -1 && sb.isEmpty() ? null : sb.toString();
+    }
+
+    private static String flag(boolean record) {
+        return record ? "h" : "-";
+    }
+
+    private static InetSocketAddress parse(String address) {
+        int colon = address.lastIndexOf(':');
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    // keeps every field on one line and free of spaces
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case ' ' -> sb.append("\\s");
+                default -> sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(switch (n) {
+                    case 'n' -> '\n';
+                    case 'r' -> '\r';
+                    case 's' -> ' ';
+                    default -> n;
+                });
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // tags each line of one link with an HMAC over a per-link key and the line's sequence number
+    private static final class LineMac {
+        private final Mac mac;
+        private long seq;
+
+        LineMac(byte[] secret, String acceptorNonce, String dialerNonce) {
+            mac = hmac(HEX.parseHex(tag(secret, "LINK", acceptorNonce, dialerNonce)));
+        }
+
+        String sign(String line) {
+            mac.update(Long.toString(seq++).getBytes(StandardCharsets.US_ASCII));
+            mac.update((byte) 0);
+            return HEX.formatHex(mac.doFinal(line.getBytes(StandardCharsets.UTF_8)), 0, TAG_BYTES);
+        }
+
+        boolean verify(String line, String given) {
+            return MessageDigest.isEqual(given.getBytes(StandardCharsets.US_ASCII),
+                    sign(line).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    // an outgoing link. Lines are queued and written by the link's own thread, so a slow or stuck peer
+    // never blocks a publisher or pins a carrier; a peer that lets LINK_QUEUE_SIZE lines pile up is
+    // dropped. Whatever the link could not write goes to onUnsent.
+    private static final class PeerLink {
+        private final String node;
+        private final Socket sock;
+        private final LineMac mac;
+        private final Consumer<String> onUnsent;
+        private final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<>(LINK_QUEUE_SIZE);
+        private final Thread writer;
+        private volatile boolean failed;
+
+        PeerLink(String node, Socket sock, LineMac mac, Consumer<String> onUnsent) throws IOException {
+            this.node = node;
+            this.sock = sock;
+            this.mac = mac;
+            this.onUnsent = onUnsent;
+            OutputStream out = sock.getOutputStream();
+            writer = Thread.startVirtualThread(() -> writeLoop(out));
+        }
+
+        boolean send(String line) {
+            if (failed) {
+                return false;
+            }
+            if (!queue.offer(line)) {
+                Log.warn("Dropping cluster link to " + node + ": " + LINK_QUEUE_SIZE + " lines queued");
+                close();
+                return false;
+            }
+            return accepted(line);
+        }
+
+        // waits for room in the queue; only for bulk sends from the link's own dial thread
+        boolean put(String line) {
+            try {
+                while (!failed) {
+                    if (queue.offer(line, RETRY_DELAY_MS, TimeUnit.MILLISECONDS)) {
+                        return accepted(line);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        // a line queued just as the link failed is either taken back here or handed to onUnsent by the writer
+        private boolean accepted(String line) {
+            return !failed || !queue.remove(line);
+        }
+
+        void close() {
+            failed = true;
+            writer.interrupt();
+            try {
+                sock.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        // signs on this thread, so the sequence numbers follow the order the lines hit the wire
+        private void writeLoop(OutputStream out) {
+            List<String> batch = new ArrayList<>();
+            StringBuilder buf = new StringBuilder();
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch);
+                    for (String line : batch) {
+                        buf.append(mac.sign(line)).append(' ').append(line).append('\n');
+                    }
+                    out.write(buf.toString().getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    batch.clear();
+                    buf.setLength(0);
+                }
+            } catch (IOException | InterruptedException e) {
+                failed = true;
+                try {
+                    sock.close();
+                } catch (IOException ignored) {
+                }
+                // part of the failed batch may have reached the peer, so a private message can arrive twice
+                queue.drainTo(batch);
+                batch.forEach(onUnsent);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ConsistentHashRing {
+    // points per node on the ring; more points give a more even split of rooms
+    private static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final Set<String> nodes = new TreeSet<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public boolean add(String node) {
+        lock.writeLock().lock();
+        try {
+            if (!nodes.add(node)) return false;
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(String node) {
+        lock.writeLock().lock();
+        try {
+            if (!nodes.remove(node)) return false;
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.remove(hash(node + "#" + i), node);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public String ownerOf(String key) {
+        long h = hash(key);
+        lock.readLock().lock();
+        try {
+            if (ring.isEmpty()) return null;
+            SortedMap<Long, String> tail = ring.tailMap(h);
+            return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Set<String> getNodes() {
+        lock.readLock().lock();
+        try {
+            return new TreeSet<>(nodes);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static long hash(String key) {
+        try {
+            var md = MessageDigest.getInstance("MD5");
+            byte[] d = md.digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (d[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
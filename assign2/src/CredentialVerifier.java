@@ -0,0 +1,246 @@
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Password hashing for UserManager. Hashes are salted PBKDF2 blobs; the key derivation runs on a small
+// pool of platform threads sized to the cores, so a login flood queues there (and is refused once the
+// queue is full) instead of pinning the carriers that chat handlers run on. Passwords verified in the
+// last few seconds are remembered as keyed digests, so a quick re-login skips the KDF.
+public class CredentialVerifier {
+    private static final int ITERATIONS = Integer.getInteger("chat.auth.iterations", 100_000);
+    private static final int QUEUE_SIZE = Integer.getInteger("chat.auth.queue", 256);
+    private static final long CACHE_TTL_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("chat.auth.cache.ttl", 60));
+    private static final int CACHE_SIZE = Integer.getInteger("chat.auth.cache.size", 10_000);
+
+    // blob: format byte, iterations, salt, derived key. Unsalted SHA-256 hashes from older snapshots are
+    // plain 32-byte digests and are replaced at the next successful login.
+    private static final byte FORMAT_PBKDF2 = 1;
+    private static final int SALT_BYTES = 16;
+    private static final int KEY_BYTES = 32;
+    private static final int BLOB_BYTES = 1 + 4 + SALT_BYTES + KEY_BYTES;
+    private static final int LEGACY_BYTES = 32;
+
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadPoolExecutor pool;
+    private final ThreadLocal<SecretKeyFactory> kdf = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // user -> digest of the password last verified for them, keyed so a heap dump does not give it away
+    private final Map<String, CacheEntry> verified = new ConcurrentHashMap<>();
+    private final Mac cacheMac;
+
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private static final class CacheEntry {
+        final byte[] digest;
+        final byte[] stored;    // the hash it was checked against; a new hash invalidates the entry
+        final long expiresAt;
+
+        CacheEntry(byte[] digest, byte[] stored, long expiresAt) {
+            this.digest = digest;
+            this.stored = stored;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public CredentialVerifier() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        AtomicInteger n = new AtomicInteger();
+        pool = new ThreadPoolExecutor(cores, cores, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+                    Thread t = new Thread(r, "auth-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        try {
+            byte[] key = new byte[32];
+            random.nextBytes(key);
+            cacheMac = Mac.getInstance("HmacSHA256");
+            cacheMac.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Derives a new salted hash on the auth pool. Throws RejectedExecutionException when the pool is saturated. */
+    public byte[] hash(String password) {
+        return onPool(() -> derive(password));
+    }
+
+    /**
+     * Checks {@code password} against {@code stored}. Returns null if it does not match, {@code stored} if it
+     * does, or a fresh hash when {@code stored} is a legacy digest or uses fewer iterations than configured;
+     * the caller should then persist it. Throws RejectedExecutionException when the pool is saturated.
+     */
+    public byte[] verify(String user, String password, byte[] stored) {
+        byte[] digest = cacheDigest(user, password);
+        CacheEntry hit = verified.get(user);
+        if (hit != null && hit.stored == stored && hit.expiresAt - System.nanoTime() > 0
+                && MessageDigest.isEqual(hit.digest, digest)) {
+            cacheHits.increment();
+            return stored;
+        }
+        byte[] result = onPool(() -> {
+            if (!matches(password, stored)) {
+                return null;
+            }
+            return needsRehash(stored) ? derive(password) : stored;
+        });
+        if (result != null) {
+            remember(user, digest, result);
+        }
+        return result;
+    }
+
+    /** Records a password the caller just hashed, so the login that registered it is already cached. */
+    public void remember(String user, String password, byte[] stored) {
+        remember(user, cacheDigest(user, password), stored);
+    }
+
+    public void forget(String user) {
+        verified.remove(user);
+    }
+
+    private void remember(String user, byte[] digest, byte[] stored) {
+        if (verified.size() >= CACHE_SIZE) {
+            long now = System.nanoTime();
+            verified.values().removeIf(e -> e.expiresAt - now <= 0);
+            if (verified.size() >= CACHE_SIZE) {
+                verified.clear();
+            }
+        }
+        verified.put(user, new CacheEntry(digest, stored, System.nanoTime() + CACHE_TTL_NANOS));
+    }
+
+    // runs the task on the auth pool and waits; the waiting virtual thread gives up its carrier meanwhile
+    private <T> T onPool(Supplier<T> task) {
+        long start = System.nanoTime();
+        CompletableFuture<T> f;
+        try {
+            f = CompletableFuture.supplyAsync(task, pool);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+        T result = f.join();
+        long elapsed = System.nanoTime() - start;
+        verifications.increment();
+        latencyNanos.add(elapsed);
+        maxLatencyNanos.accumulateAndGet(elapsed, Math::max);
+        return result;
+    }
+
+    private byte[] derive(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return ByteBuffer.allocate(BLOB_BYTES)
+                .put(FORMAT_PBKDF2)
+                .putInt(ITERATIONS)
+                .put(salt)
+                .put(pbkdf2(password, salt, ITERATIONS))
+                .array();
+    }
+
+    private boolean matches(String password, byte[] stored) {
+        if (stored.length == LEGACY_BYTES) {
+            return MessageDigest.isEqual(stored, legacySha256(password));
+        }
+        if (stored.length != BLOB_BYTES || stored[0] != FORMAT_PBKDF2) {
+            return false;
+        }
+        ByteBuffer b = ByteBuffer.wrap(stored, 1, BLOB_BYTES - 1);
+        int iterations = b.getInt();
+        byte[] salt = new byte[SALT_BYTES];
+        b.get(salt);
+        byte[] key = new byte[KEY_BYTES];
+        b.get(key);
+        return MessageDigest.isEqual(key, pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * Whether a replicated hash should replace the one held locally: PBKDF2 beats a legacy digest, then more
+     * iterations win, and equal strengths fall back to byte order, so nodes exchanging hashes agree on one.
+     */
+    public static boolean supersedes(byte[] candidate, byte[] current) {
+        if (candidate.length != current.length) {
+            return candidate.length == BLOB_BYTES;
+        }
+        if (candidate.length == BLOB_BYTES) {
+            int ours = ByteBuffer.wrap(current, 1, 4).getInt();
+            int theirs = ByteBuffer.wrap(candidate, 1, 4).getInt();
+            if (theirs != ours) {
+                return theirs > ours;
+            }
+        }
+        return Arrays.compare(candidate, current) > 0;
+    }
+
+    private static boolean needsRehash(byte[] stored) {
+        return stored.length != BLOB_BYTES || ByteBuffer.wrap(stored, 1, 4).getInt() < ITERATIONS;
+    }
+
+    private byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_BYTES * 8);
+        try {
+            return kdf.get().generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static byte[] legacySha256(String password) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] cacheDigest(String user, String password) {
+        try {
+            Mac mac = (Mac) cacheMac.clone();
+            mac.update(user.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String summary() {
+        long n = verifications.sum();
+        return String.format("auth: %d kdf runs, %d cache hits, %d busy, avg %d us, max %d us, queue %d/%d",
+                n, cacheHits.sum(), rejected.sum(),
+                n == 0 ? 0 : latencyNanos.sum() / n / 1_000,
+                maxLatencyNanos.get() / 1_000, pool.getQueue().size(), QUEUE_SIZE);
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+public class FanOutEngine {
+    // below this many recipients the sender's thread writes to everyone itself
+    private final int threshold;
+    // recipients handed to each virtual thread above the threshold
+    private final int batchSize;
+
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder parallelBroadcasts = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private volatile long lastNanos;
+
+    public FanOutEngine() {
+        this(Integer.getInteger("chat.fanout.threshold", 256), Integer.getInteger("chat.fanout.batch", 128));
+    }
+
+    public FanOutEngine(int threshold, int batchSize) {
+        if (threshold < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Fan-out threshold and batch size must be positive");
+        }
+        this.threshold = threshold;
+        this.batchSize = batchSize;
+    }
+
+    /** Hands the line to every target and returns once all have it; the result is the completion time in nanoseconds. */
+    public <T> long fanOut(List<T> targets, Consumer<T> send) {
+        long start = System.nanoTime();
+        int n = targets.size();
+        if (n < threshold) {
+            for (T t : targets) {
+                send.accept(t);
+            }
+        } else {
+            int batches = (n + batchSize - 1) / batchSize;
+            CountDownLatch done = new CountDownLatch(batches - 1);
+            for (int b = 1; b < batches; b++) {
+                int from = b * batchSize;
+                int to = Math.min(from + batchSize, n);
+                Thread.startVirtualThread(() -> {
+                    try {
+                        for (int i = from; i < to; i++) {
+                            send.accept(targets.get(i));
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            // the sender takes the first batch instead of idling on the latch
+            for (int i = 0; i < Math.min(batchSize, n); i++) {
+                send.accept(targets.get(i));
+            }
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            parallelBroadcasts.increment();
+        }
+        long elapsed = System.nanoTime() - start;
+        record(elapsed);
+        return elapsed;
+    }
+
+    private void record(long nanos) {
+        broadcasts.increment();
+        totalNanos.add(nanos);
+        lastNanos = nanos;
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public String summary() {
+        long count = broadcasts.sum();
+        long avg = count == 0 ? 0 : totalNanos.sum() / count;
+        return String.format("fan-out: %d broadcasts (%d parallel), avg %d us, max %d us, last %d us",
+                count, parallelBroadcasts.sum(), avg / 1_000, maxNanos.get() / 1_000, lastNanos / 1_000);
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+// Hands a running server's state to the process replacing it. The old process writes its rooms (with
+// their history) to a snapshot while it drains; a new process started with -Dchat.takeover=true asks
+// the old one to drain and waits for that snapshot before it loads anything.
+public final class Handover {
+    private static final String ROOMS_FILE = System.getProperty("chat.rooms.file", "rooms_state.bin");
+    private static final String PID_FILE = System.getProperty("chat.pid.file", "server.pid");
+    private static final boolean TAKEOVER = Boolean.getBoolean("chat.takeover");
+    private static final long TAKEOVER_TIMEOUT_MS = Long.getLong("chat.takeover.timeout", 10_000);
+
+    private static final int ROOMS_MAGIC = 0x43505352; // "CPSR"
+    private static final int ROOMS_VERSION = 1;
+
+    private Handover() {
+    }
+
+    /**
+     * If takeover is enabled and the pid file names a live server, sends it SIGTERM so it starts draining
+     * and waits until it has written its rooms snapshot. Our listeners are already bound, so connections
+     * arriving meanwhile wait in our backlog instead of being refused.
+     */
+    public static void takeOver() {
+        if (!TAKEOVER) {
+            return;
+        }
+        Optional<ProcessHandle> old = readPid().flatMap(ProcessHandle::of);
+        if (old.isEmpty() || !old.get().isAlive() || old.get().pid() == ProcessHandle.current().pid()) {
+            return;
+        }
+        // the pid may have been reused since the file was written; only signal something that looks like us
+        boolean isServer = old.get().info().commandLine().map(c -> c.contains("Server")).orElse(false);
+        if (!isServer) {
+            Log.warn("Not taking over from process " + old.get().pid() + ": not a chat server");
+            return;
+        }
+        File rooms = new File(ROOMS_FILE);
+        long since = System.currentTimeMillis();
+        long start = System.nanoTime();
+        Log.info("Taking over from process " + old.get().pid());
+        old.get().destroy();
+        long deadline = System.currentTimeMillis() + TAKEOVER_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline && old.get().isAlive() && rooms.lastModified() < since) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        Log.log(Log.Level.INFO, "Previous server handed over", null, null, System.nanoTime() - start);
+    }
+
+    public static void writePid() {
+        try {
+            Files.writeString(Paths.get(PID_FILE), Long.toString(ProcessHandle.current().pid()));
+        } catch (IOException e) {
+            Log.warn("Could not write " + PID_FILE + ": " + e.getMessage());
+        }
+    }
+
+    // removed on exit unless a newer process has already claimed the file
+    public static void releasePid() {
+        if (readPid().filter(pid -> pid == ProcessHandle.current().pid()).isPresent()) {
+            new File(PID_FILE).delete();
+        }
+    }
+
+    private static Optional<Long> readPid() {
+        try {
+            return Optional.of(Long.parseLong(Files.readString(Paths.get(PID_FILE)).trim()));
+        } catch (IOException | NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    // format: magic, version, count, then per room: name, prompt (empty for regular rooms), history
+    public static void saveRooms(Collection<ChatRoom> rooms) {
+        Path target = Paths.get(ROOMS_FILE);
+        Path tmp = Paths.get(ROOMS_FILE + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(ROOMS_MAGIC);
+                out.writeInt(ROOMS_VERSION);
+                out.writeInt(rooms.size());
+                for (ChatRoom room : rooms) {
+                    writeString(out, room.getChatRoomName());
+                    writeString(out, room.isAI() ? room.getPrompt() : "");
+                    List<String> history = room.getHistory();
+                    out.writeInt(history.size());
+                    for (String msg : history) {
+                        writeString(out, msg);
+                    }
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.error("Error writing " + ROOMS_FILE + ": " + e.getMessage());
+        }
+    }
+
+    public static List<ChatRoom> loadRooms() {
+        List<ChatRoom> rooms = new ArrayList<>();
+        File file = new File(ROOMS_FILE);
+        if (!file.exists()) {
+            return rooms;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != ROOMS_MAGIC || in.readInt() != ROOMS_VERSION) {
+                throw new IOException(ROOMS_FILE + " is not a rooms snapshot");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = readString(in);
+                String prompt = readString(in);
+                ChatRoom room = prompt.isEmpty() ? new ChatRoom(name) : new ChatRoom(name, prompt);
+                int messages = in.readInt();
+                for (int m = 0; m < messages; m++) {
+                    room.addMessage(readString(in));
+                }
+                rooms.add(room);
+            }
+            Log.info("Restored " + rooms.size() + " rooms from " + ROOMS_FILE);
+        } catch (IOException e) {
+            Log.error("Error reading " + ROOMS_FILE + ": " + e.getMessage());
+        }
+        return rooms;
+    }
+
+    // messages can be long AI replies, so lengths are ints rather than writeUTF's shorts
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous logger for the server. Callers claim a slot in a preallocated ring and return at once;
+// a single background thread formats and writes the events. When the ring is full events are dropped
+// (and counted) unless -Dchat.log.lossy=false, in which case callers wait for space.
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final Level THRESHOLD = Level.valueOf(System.getProperty("chat.log.level", "INFO").toUpperCase());
+    private static final boolean LOSSY = Boolean.parseBoolean(System.getProperty("chat.log.lossy", "true"));
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(16, Integer.getInteger("chat.log.buffer", 8192)));
+    private static final int MASK = CAPACITY - 1;
+    // the drain thread sleeps until a producer wakes it; this is only a safety net
+    private static final long IDLE_PARK_NANOS = 100_000_000;
+    // a producer waiting for space parks for doubling intervals up to this
+    private static final long MAX_BACKOFF_NANOS = 1_000_000;
+
+    // preallocated, reused events; a slot is readable once its sequence is position + 1
+    private static final Event[] slots = new Event[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static long head;          // drain side only
+    private static long reportedDrops; // drain side only
+    private static final Object drainLock = new Object();
+    private static final Thread drainThread;
+    // set by the drain thread before it parks, so producers only pay for an unpark when it is asleep
+    private static volatile boolean drainIdle;
+
+    private static final Writer out = new BufferedWriter(new OutputStreamWriter(System.err), 1 << 16);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Event();
+            sequences.set(i, i);
+        }
+        drainThread = new Thread(Log::drainLoop, "log-drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drainNow));
+    }
+
+    private static final class Event {
+        long timeMillis;
+        Level level;
+        String msg;
+        String user;
+        String room;
+        long latencyNanos;
+    }
+
+    private Log() {
+    }
+
+    public static boolean enabled(Level level) {
+        return level.ordinal() >= THRESHOLD.ordinal();
+    }
+
+    public static void debug(String msg) {
+        log(Level.DEBUG, msg, null, null, -1);
+    }
+
+    public static void info(String msg) {
+        log(Level.INFO, msg, null, null, -1);
+    }
+
+    public static void warn(String msg) {
+        log(Level.WARN, msg, null, null, -1);
+    }
+
+    public static void error(String msg) {
+        log(Level.ERROR, msg, null, null, -1);
+    }
+
+    /** Structured event; {@code user} and {@code room} may be null, a negative latency is left out. */
+    public static void log(Level level, String msg, String user, String room, long latencyNanos) {
+        if (!enabled(level)) {
+            return;
+        }
+        long backoff = 1_000;
+        while (true) {
+            long pos = tail.get();
+            int idx = (int) pos & MASK;
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    Event e = slots[idx];
+                    e.timeMillis = System.currentTimeMillis();
+                    e.level = level;
+                    e.msg = msg;
+                    e.user = user;
+                    e.room = room;
+                    e.latencyNanos = latencyNanos;
+                    sequences.set(idx, pos + 1);
+                    if (drainIdle) {
+                        LockSupport.unpark(drainThread);
+                    }
+                    return;
+                }
+            } else if (diff < 0) {
+                // ring is full
+                if (LOSSY) {
+                    dropped.increment();
+                    return;
+                }
+                // park rather than spin: a spinning virtual thread would hold its carrier
+                LockSupport.unpark(drainThread);
+                LockSupport.parkNanos(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+            }
+        }
+    }
+
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            if (drainNow() > 0) {
+                continue;
+            }
+            drainIdle = true;
+            // recheck after announcing: an event published before the flag was seen is caught here
+            if (!published()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            drainIdle = false;
+        }
+    }
+
+    private static boolean published() {
+        synchronized (drainLock) {
+            return sequences.get((int) head & MASK) == head + 1;
+        }
+    }
+
+    // writes everything published so far; also run by the shutdown hook
+    private static int drainNow() {
+        synchronized (drainLock) {
+            int n = 0;
+            StringBuilder sb = new StringBuilder(160);
+            try {
+                while (true) {
+                    int idx = (int) head & MASK;
+                    if (sequences.get(idx) != head + 1) {
+                        break;
+                    }
+                    Event e = slots[idx];
+                    sb.setLength(0);
+                    format(sb, e);
+                    e.msg = null;
+                    e.user = null;
+                    e.room = null;
+                    sequences.set(idx, head + CAPACITY);
+                    head++;
+                    out.append(sb);
+                    n++;
+                }
+                long lost = dropped.sum() - reportedDrops;
+                reportedDrops += lost;
+                if (lost > 0) {
+                    sb.setLength(0);
+                    sb.append(Instant.now()).append(" WARN  log buffer full, dropped ").append(lost).append(" events\n");
+                    out.append(sb);
+                }
+                if (n > 0 || lost > 0) {
+                    out.flush();
+                }
+            } catch (IOException ignored) {
+                // nowhere left to report it
+            }
+            return n;
+        }
+    }
+
+    private static void format(StringBuilder sb, Event e) {
+        sb.append(Instant.ofEpochMilli(e.timeMillis)).append(' ');
+        sb.append(e.level);
+        for (int i = e.level.name().length(); i < 6; i++) {
+            sb.append(' ');
+        }
+        if (e.user != null) {
+            sb.append("user=").append(e.user).append(' ');
+        }
+        if (e.room != null) {
+            sb.append("room=").append(e.room).append(' ');
+        }
+        if (e.latencyNanos >= 0) {
+            sb.append("latency_us=").append(e.latencyNanos / 1_000).append(' ');
+        }
+        sb.append(e.msg).append('\n');
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Adler32;
+import java.util.zip.Inflater;
+
+public class PayloadCodec {
+    // wire prefix of a compressed line: "DEFLATE <base64>"
+    public static final String FRAME_PREFIX = "DEFLATE ";
+
+    public static final int THRESHOLD = Integer.getInteger("chat.compress.threshold", 512);
+
+    private static final int POOL_SIZE = Integer.getInteger("chat.compress.pool", 64);
+
+    // a frame that inflates past this is refused, so a small line cannot expand into a huge allocation
+    private static final int MAX_INFLATED = Integer.getInteger("chat.compress.max", 1 << 20);
+
+    // phrases that show up in almost every payload, shared by both ends of the link
+    private static final byte[] DICTIONARY = String.join("\n",
+            "You are a helpful AI assistant. Keep track of the conversation and respond concisely.",
+            "Available rooms:",
+            "- ",
+            " users)",
+            "-- You have rejoined the rooms: ",
+            " (active: ",
+            "-- You have left the room: ",
+            " has joined the room: ",
+            " has left the room: ",
+            " --",
+            "] ",
+            "Bot: ",
+            ": ",
+            "the ", "and ", "you ", "that ", "this ", "with ", "for ", "is ", "to ", "of ", "in "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    // zlib's own id for the dictionary (its Adler-32), exchanged in the /compress handshake so two ends
+    // built with different dictionaries fall back to plain text instead of inflating garbage
+    public static final String DICTIONARY_ID = Long.toHexString(adler32(DICTIONARY));
+
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledDeflaters = new AtomicInteger();
+    private static final AtomicInteger pooledInflaters = new AtomicInteger();
+
+    private PayloadCodec() {
+    }
+
+    /** Returns the framed line for {@code payload}, or null if it is below the threshold or does not shrink. */
+    public static String encode(String payload) {
+        if (payload.length() < THRESHOLD) {
+            return null;
+        }
+        byte[] raw = payload.getBytes(StandardCharsets.UTF_8);
+        byte[] packed = deflate(raw);
+        String frame = FRAME_PREFIX + Base64.getEncoder().encodeToString(packed);
+        return frame.length() < raw.length ? frame : null;
+    }
+
+    public static boolean isFrame(String line) {
+        return line.startsWith(FRAME_PREFIX);
+    }
+
+    public static String decode(String frame) {
+        byte[] packed = Base64.getDecoder().decode(frame.substring(FRAME_PREFIX.length()));
+        return new String(inflate(packed), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater d = deflaters.poll();
+        if (d == null) {
+            d = new Deflater(Deflater.BEST_COMPRESSION);
+        } else {
+            pooledDeflaters.decrementAndGet();
+        }
+        try {
+            d.setDictionary(DICTIONARY);
+            d.setInput(raw);
+            d.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            byte[] buf = new byte[Math.min(raw.length + 64, 8192)];
+            while (!d.finished()) {
+                int n = d.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            d.reset();
+            if (pooledDeflaters.incrementAndGet() <= POOL_SIZE) {
+                deflaters.offer(d);
+            } else {
+                pooledDeflaters.decrementAndGet();
+                d.end();
+            }
+        }
+    }
+
+    private static byte[] inflate(byte[] packed) {
+        Inflater inf = inflaters.poll();
+        if (inf == null) {
+            inf = new Inflater();
+        } else {
+            pooledInflaters.decrementAndGet();
+        }
+        try {
+            inf.setInput(packed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(packed.length * 4, MAX_INFLATED));
+            byte[] buf = new byte[8192];
+            while (!inf.finished()) {
+                int n = inf.inflate(buf);
+                if (n == 0) {
+                    if (inf.needsDictionary()) {
+                        if (Long.toHexString(inf.getAdler()).equals(DICTIONARY_ID)) {
+                            inf.setDictionary(DICTIONARY);
+                        } else {
+                            throw new IllegalArgumentException("Frame uses an unknown dictionary");
+                        }
+                    } else if (inf.needsInput()) {
+                        throw new IllegalArgumentException("Truncated compressed frame");
+                    }
+                }
+                if (out.size() + n > MAX_INFLATED) {
+                    throw new IllegalArgumentException("Compressed frame inflates past " + MAX_INFLATED + " bytes");
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed frame: " + e.getMessage(), e);
+        } finally {
+            inf.reset();
+            if (pooledInflaters.incrementAndGet() <= POOL_SIZE) {
+                inflaters.offer(inf);
+            } else {
+                pooledInflaters.decrementAndGet();
+                inf.end();
+            }
+        }
+    }
+
+    /** True if the peer's dictionary id from the /compress handshake matches ours. */
+    public static boolean supportsDictionary(String id) {
+        return DICTIONARY_ID.equals(id);
+    }
+
+    // UTF-8 length without encoding the string; the stats compare it with the frame's (ASCII) length
+    public static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    private static long adler32(byte[] b) {
+        Adler32 a = new Adler32();
+        a.update(b);
+        return a.getValue();
+    }
+
+    // per-connection counters; written from the owner and from broadcasting threads
+    public static class Stats {
+        private final LongAdder frames = new LongAdder();
+        private final LongAdder rawBytes = new LongAdder();
+        private final LongAdder wireBytes = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+
+        public void record(int raw, int wire, long nanos) {
+            frames.increment();
+            rawBytes.add(raw);
+            wireBytes.add(wire);
+            cpuNanos.add(nanos);
+        }
+
+        public String summary() {
+            long raw = rawBytes.sum();
+            long wire = wireBytes.sum();
+            double ratio = wire == 0 ? 1.0 : (double) raw / wire;
+            return String.format("compression: %d frames, %d B -> %d B (%.2fx), %d us cpu",
+                    frames.sum(), raw, wire, ratio, cpuNanos.sum() / 1_000);
+        }
+    }
+}
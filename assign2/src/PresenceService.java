@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+// Turns room membership changes into at most one presence line per room per interval. A user whose
+// last connection drops gets a grace period to come back before the room hears they left, and the
+// rejoins that follow a server start are silent, so a reconnect storm produces no presence traffic.
+public class PresenceService {
+    private static final long INTERVAL_MS = Long.getLong("chat.presence.interval", 1000);
+    private static final long GRACE_MS = Long.getLong("chat.presence.grace", 10_000);
+    private static final int MAX_NAMES = 20;
+
+    private final BiConsumer<String, String> emit;
+    private final Thread flusher;
+    private final long startedAt = System.currentTimeMillis();
+
+    private final Object lock = new Object();
+    // room -> user -> joined (true) or left (false) since the last flush; opposite changes cancel out
+    private final Map<String, Map<String, Boolean>> pending = new HashMap<>();
+    // users with no open connection, until their grace period ends
+    private final Map<String, Away> away = new HashMap<>();
+
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder lines = new LongAdder();
+
+    private static final class Away {
+        final long until;
+        final List<String> rooms;
+
+        Away(long until, List<String> rooms) {
+            this.until = until;
+            this.rooms = rooms;
+        }
+    }
+
+    /** {@code emit} receives (room, line) for every batched presence line. */
+    public PresenceService(BiConsumer<String, String> emit) {
+        this.emit = emit;
+        flusher = new Thread(this::flushLoop, "presence");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Stops the flush thread; changes not yet flushed are dropped. */
+    public void close() {
+        flusher.interrupt();
+    }
+
+    public void joined(String room, String user) {
+        synchronized (lock) {
+            record(room, user, true);
+        }
+    }
+
+    public void left(String room, String user) {
+        synchronized (lock) {
+            record(room, user, false);
+        }
+    }
+
+    /** The user's first connection came up and rejoined {@code rooms}. */
+    public void connected(String user, List<String> rooms) {
+        synchronized (lock) {
+            boolean returning = away.remove(user) != null;
+            if (returning || System.currentTimeMillis() - startedAt < GRACE_MS) {
+                suppressed.add(rooms.size());
+                return;
+            }
+            for (String room : rooms) {
+                record(room, user, true);
+            }
+        }
+    }
+
+    /** The user's last connection closed without leaving {@code rooms}; they count as present until the grace ends. */
+    public void disconnected(String user, List<String> rooms) {
+        if (rooms.isEmpty()) {
+            return;
+        }
+        synchronized (lock) {
+            away.put(user, new Away(System.currentTimeMillis() + GRACE_MS, rooms));
+        }
+    }
+
+    public boolean isAway(String user) {
+        synchronized (lock) {
+            return away.containsKey(user);
+        }
+    }
+
+    private void record(String room, String user, boolean joined) {
+        changes.increment();
+        Map<String, Boolean> delta = pending.computeIfAbsent(room, r -> new LinkedHashMap<>());
+        Boolean prior = delta.get(user);
+        if (prior != null && prior != joined) {
+            delta.remove(user);
+        } else {
+            delta.put(user, joined);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            try {
+                Thread.sleep(INTERVAL_MS);
+                flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Log.warn("Presence flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void flush() {
+        Map<String, Map<String, Boolean>> batch;
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<String, Away>> it = away.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Away> e = it.next();
+                if (e.getValue().until <= now) {
+                    for (String room : e.getValue().rooms) {
+                        record(room, e.getKey(), false);
+                    }
+                    it.remove();
+                }
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new HashMap<>(pending);
+            pending.clear();
+        }
+        // emitted outside the lock: publishing fans out to every member
+        for (Map.Entry<String, Map<String, Boolean>> e : batch.entrySet()) {
+            List<String> in = new ArrayList<>();
+            List<String> out = new ArrayList<>();
+            e.getValue().forEach((user, joined) -> (joined ? in : out).add(user));
+            if (in.isEmpty() && out.isEmpty()) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder("--");
+            if (!in.isEmpty()) {
+                line.append(" joined: ").append(names(in));
+            }
+            if (!out.isEmpty()) {
+                line.append(in.isEmpty() ? " " : " | ").append("left: ").append(names(out));
+            }
+            line.append(" --");
+            lines.increment();
+            emit.accept(e.getKey(), line.toString());
+        }
+    }
+
+    private static String names(List<String> users) {
+        if (users.size() <= MAX_NAMES) {
+            return String.join(", ", users);
+        }
+        return String.join(", ", users.subList(0, MAX_NAMES)) + " and " + (users.size() - MAX_NAMES) + " more";
+    }
+
+    public String summary() {
+        int awayNow;
+        synchronized (lock) {
+            awayNow = away.size();
+        }
+        return String.format("presence: %d changes in %d lines, %d rejoins suppressed, %d users away",
+                changes.sum(), lines.sum(), suppressed.sum(), awayNow);
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class RateLimiter {
+    public enum Kind {
+        CHAT("chat", "5:10", "200:400"),
+        JOIN("join", "1:5", "50:100"),
+        AI("ai", "0.2:2", "0.5:2");
+
+        final String label;
+        final String userDefault;
+        final String roomDefault;
+
+        Kind(String label, String userDefault, String roomDefault) {
+            this.label = label;
+            this.userDefault = userDefault;
+            this.roomDefault = roomDefault;
+        }
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+    // buckets that have refilled completely hold no state worth keeping; they are dropped this often
+    private static final long SWEEP_NANOS = 60_000_000_000L;
+
+    // limits per kind, "<permits per second>:<burst>", overridable with -Dchat.rate.<kind>.user / .room
+    private final long[] userEmission = new long[KINDS.length];
+    private final long[] userTolerance = new long[KINDS.length];
+    private final long[] roomEmission = new long[KINDS.length];
+    private final long[] roomTolerance = new long[KINDS.length];
+
+    private final Map<String, TokenBucket[]> userBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket[]> roomBuckets = new ConcurrentHashMap<>();
+    private final LongAdder[] shed = new LongAdder[KINDS.length];
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    public RateLimiter() {
+        for (Kind k : KINDS) {
+            long[] user = parse(System.getProperty("chat.rate." + k.label + ".user", k.userDefault));
+            long[] room = parse(System.getProperty("chat.rate." + k.label + ".room", k.roomDefault));
+            userEmission[k.ordinal()] = user[0];
+            userTolerance[k.ordinal()] = user[1];
+            roomEmission[k.ordinal()] = room[0];
+            roomTolerance[k.ordinal()] = room[1];
+            shed[k.ordinal()] = new LongAdder();
+        }
+    }
+
+    private static long[] parse(String spec) {
+        String[] p = spec.split(":", 2);
+        double perSecond = Double.parseDouble(p[0]);
+        long burst = p.length > 1 ? Long.parseLong(p[1]) : 1;
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Invalid rate limit: " + spec);
+        }
+        long emission = (long) (1_000_000_000L / perSecond);
+        return new long[]{emission, emission * (burst - 1)};
+    }
+
+    /** Takes one permit from the user's and, if given, the room's bucket; false means the request must be shed. */
+    public boolean tryAcquire(Kind kind, String user, String room) {
+        long now = System.nanoTime();
+        int k = kind.ordinal();
+        sweepIfDue(now);
+        TokenBucket userBucket = buckets(userBuckets, user)[k];
+        boolean ok = userBucket.tryAcquire(now, userEmission[k], userTolerance[k]);
+        if (ok && room != null && !buckets(roomBuckets, room)[k].tryAcquire(now, roomEmission[k], roomTolerance[k])) {
+            // the request is shed anyway, so it must not cost the user a permit
+            userBucket.refund(userEmission[k]);
+            ok = false;
+        }
+        if (!ok) {
+            shed[k].increment();
+        }
+        return ok;
+    }
+
+    // a full bucket behaves exactly like a fresh one, so dropping it only bounds the maps. A request racing
+    // with the sweep may land on the dropped bucket, which at worst grants one extra permit.
+    private void sweepIfDue(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        userBuckets.values().removeIf(b -> idle(b, now));
+        roomBuckets.values().removeIf(b -> idle(b, now));
+    }
+
+    private static boolean idle(TokenBucket[] buckets, long now) {
+        for (TokenBucket b : buckets) {
+            if (!b.isFull(now)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static TokenBucket[] buckets(Map<String, TokenBucket[]> map, String key) {
+        TokenBucket[] b = map.get(key);
+        if (b == null) {
+            b = map.computeIfAbsent(key, x -> {
+                TokenBucket[] created = new TokenBucket[KINDS.length];
+                for (int i = 0; i < created.length; i++) {
+                    created[i] = new TokenBucket();
+                }
+                return created;
+            });
+        }
+        return b;
+    }
+
+    public String summary() {
+        StringBuilder sb = new StringBuilder("rate limited:");
+        for (Kind k : KINDS) {
+            sb.append(' ').append(k.label).append('=').append(shed[k.ordinal()].sum());
+        }
+        return sb.toString();
+    }
+
+    // token bucket kept as a single "theoretical arrival time" (GCRA), so a check is one CAS and no allocation
+    private static class TokenBucket {
+        private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE);
+
+        boolean tryAcquire(long now, long emission, long tolerance) {
+            while (true) {
+                long current = tat.get();
+                long base = Math.max(current, now);
+                if (base - now > tolerance) {
+                    return false;
+                }
+                if (tat.compareAndSet(current, base + emission)) {
+                    return true;
+                }
+            }
+        }
+
+        void refund(long emission) {
+            tat.addAndGet(-emission);
+        }
+
+        boolean isFull(long now) {
+            return tat.get() <= now;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Short, deterministic checks for failure modes the soak run only hits by luck. Each check sets up what
+// it needs in this JVM, with state in a temp directory, and prints ok or FAIL; exits 1 if any failed.
+//
+// java -Djavax.net.ssl.keyStore=server.jks -Djavax.net.ssl.keyStorePassword=<pw>
+//      -Djavax.net.ssl.trustStore=truststore.jks -Djavax.net.ssl.trustStorePassword=<pw>
+//      -cp out/production/assign2 RegressionChecks
+public class RegressionChecks {
+    private static final String PASSWORD = "check-pw";
+    private static final String HOST = "localhost";
+    private static final long TIMEOUT_S = 30;
+
+    private static Path dir;
+    private static int port;
+    private static int failures;
+
+    private interface Check {
+        /** Returns null when the check passed, otherwise what went wrong. */
+        String run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String p : new String[]{"javax.net.ssl.keyStore", "javax.net.ssl.keyStorePassword",
+                "javax.net.ssl.trustStore", "javax.net.ssl.trustStorePassword"}) {
+            if (System.getProperty(p) == null) {
+                System.err.println("ERROR: " + p + " system property not set!");
+                System.exit(2);
+            }
+        }
+        // keep the real snapshots out of reach; set before the server classes read them
+        dir = Files.createTempDirectory("chat-checks");
+        System.setProperty("chat.snapshot.file", dir.resolve("user_state.bin").toString());
+        System.setProperty("chat.state.file", dir.resolve("user_state.txt").toString());
+        System.setProperty("chat.rooms.file", dir.resolve("rooms_state.bin").toString());
+        System.setProperty("chat.pid.file", dir.resolve("server.pid").toString());
+        // small outboxes and no chat limits, so a stalled reader overflows within seconds
+        setDefault("chat.outbox.size", "64");
+        setDefault("chat.rate.chat.user", "100000:100000");
+        setDefault("chat.rate.chat.room", "100000:100000");
+        setDefault("chat.auth.iterations", "1000");
+        port = Integer.getInteger("chat.port", 9999);
+
+        check("a reader that stopped reading does not hold up its room", RegressionChecks::stalledReader);
+        check("a resync does not bring back a session revoked while the link was down",
+                RegressionChecks::revokeThenResync);
+        check("a drained server does not overwrite the snapshot it handed over", RegressionChecks::handOver);
+
+        System.out.println(failures == 0 ? "checks: PASSED" : "checks: " + failures + " FAILED");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void setDefault(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    private static void check(String name, Check check) {
+        String failure;
+        try {
+            failure = check.run();
+        } catch (Exception e) {
+            failure = e.toString();
+        }
+        if (failure == null) {
+            System.out.println("ok    " + name);
+        } else {
+            failures++;
+            System.out.println("FAIL  " + name + ": " + failure);
+        }
+    }
+
+    // one member never reads; the sender's lines must keep reaching the others after its outbox overflows
+    private static String stalledReader() throws Exception {
+        Server srv = Server.start(false);
+        try (SSLSocket stalled = rawLogin("check-stalled", "check-room")) {
+            AtomicInteger seen = new AtomicInteger(-1);
+            ChatClient receiver = connect("check-receiver", m -> {
+                int at = m.lastIndexOf("line ");
+                if (at >= 0) {
+                    int end = m.indexOf(' ', at + 5);
+                    seen.accumulateAndGet(Integer.parseInt(m.substring(at + 5, end)), Math::max);
+                }
+            });
+            ChatClient sender = connect("check-sender", m -> {
+            });
+            try {
+                receiver.join("check-room").get(TIMEOUT_S, TimeUnit.SECONDS);
+                sender.join("check-room").get(TIMEOUT_S, TimeUnit.SECONDS);
+                String pad = "x".repeat(2000);
+                // sent in windows the receiver keeps up with, so only the stalled member falls behind
+                for (int i = 0; i < 5000; i++) {
+                    sender.chat("line " + i + " " + pad);
+                    if (i % 32 == 31 && !await(seen, i)) {
+                        return "the other member stopped getting lines after " + seen.get() + " of 5000";
+                    }
+                }
+                return await(seen, 4999) ? null : "the other member got " + (seen.get() + 1) + " of 5000 lines";
+            } finally {
+                receiver.close();
+                sender.close();
+            }
+        } finally {
+            srv.shutdown();
+        }
+    }
+
+    private static boolean await(AtomicInteger seen, int line) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+        while (seen.get() < line) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    // two replicas wired back to back; one logs the user out while the link is down, then both resync
+    private static String revokeThenResync() {
+        UserManager a = replica("replica-a.bin");
+        UserManager b = replica("replica-b.bin");
+        boolean[] linkUp = {true};
+        a.setReplicator(e -> {
+            if (linkUp[0]) {
+                b.applyReplicated(e);
+            }
+        });
+        b.setReplicator(e -> {
+            if (linkUp[0]) {
+                a.applyReplicated(e);
+            }
+        });
+        String user = "check-revoke";
+        String token = a.authenticateOrRegister(user, PASSWORD).getTokenString();
+        a.addRoom(user, "check-room");
+        if (!user.equals(b.validateToken(token)) || b.getRoomNames(user).isEmpty()) {
+            return "the session did not replicate in the first place";
+        }
+
+        linkUp[0] = false;
+        a.invalidateToken(user);
+        linkUp[0] = true;
+        // what each side sends the other when the link comes back
+        for (String event : b.replicationSnapshot()) {
+            a.applyReplicated(event);
+        }
+        for (String event : a.replicationSnapshot()) {
+            b.applyReplicated(event);
+        }
+
+        if (a.validateToken(token) != null || b.validateToken(token) != null) {
+            return "the revoked token is accepted again";
+        }
+        if (!a.getRoomNames(user).isEmpty() || !b.getRoomNames(user).isEmpty()) {
+            return "the rooms left at logout are back";
+        }
+        return null;
+    }
+
+    // the old process keeps running after the handover; its later changes and shutdown must not reach the file
+    private static String handOver() {
+        UserManager old = replica("handover.bin");
+        old.authenticateOrRegister("check-before", PASSWORD);
+        old.handOver();
+        old.authenticateOrRegister("check-after", PASSWORD);
+        old.saveState();
+
+        UserManager next = replica("handover.bin");
+        if (!next.userExists("check-before")) {
+            return "the handover snapshot is missing the users saved in it";
+        }
+        if (next.userExists("check-after")) {
+            return "the snapshot was written again after the handover";
+        }
+        return null;
+    }
+
+    // a UserManager of its own, on a snapshot file of its own
+    private static UserManager replica(String file) {
+        String shared = System.getProperty("chat.snapshot.file");
+        System.setProperty("chat.snapshot.file", dir.resolve(file).toString());
+        try {
+            return new UserManager();
+        } finally {
+            System.setProperty("chat.snapshot.file", shared);
+        }
+    }
+
+    private static ChatClient connect(String user, ChatClient.Listener listener) throws Exception {
+        ChatClient c = new ChatClient(HOST, port, listener);
+        c.login(user, PASSWORD).get(TIMEOUT_S, TimeUnit.SECONDS);
+        return c;
+    }
+
+    // a small receive buffer, so the server's writes back up after a few lines
+    private static SSLSocket rawLogin(String user, String room) throws IOException {
+        SSLSocket s = (SSLSocket) SSLSocketFactory.getDefault().createSocket();
+        s.setReceiveBufferSize(4096);
+        s.connect(new InetSocketAddress(HOST, port));
+        ChatClient.configureSocket(s);
+        s.startHandshake();
+        PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+        out.println("/login " + user + " " + PASSWORD);
+        out.println("/join " + room);
+        return s;
+    }
+}
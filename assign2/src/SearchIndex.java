@@ -0,0 +1,172 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongFunction;
+
+// Inverted index over one room's history. Each term maps to the sequence ids of the messages that
+// contain it, in insertion order in an int array; a message appears once per occurrence, so the run
+// length is the term frequency. Postings keep only the low 32 bits of the ids: a search works with
+// offsets from the window's first id, which wrapping int arithmetic gets right as long as the window
+// is under 2^31 messages. Not thread-safe: the owning ChatRoom guards it with its lock.
+public class SearchIndex {
+    private static final int MAX_TERM_LENGTH = 40;
+
+    private final Map<String, Postings> terms = new HashMap<>();
+
+    // one term's postings; live entries are seqs[start, end)
+    private static final class Postings {
+        int[] seqs = new int[4];
+        int start;
+        int end;
+
+        void add(int seq) {
+            if (end == seqs.length) {
+                int size = end - start;
+                // reuse the evicted front before growing; shrink when mostly evicted
+                int cap = size * 2 < seqs.length ? Math.max(4, size * 2) : seqs.length * 2;
+                int[] next = cap == seqs.length ? seqs : new int[cap];
+                System.arraycopy(seqs, start, next, 0, size);
+                seqs = next;
+                start = 0;
+                end = size;
+            }
+            seqs[end++] = seq;
+        }
+
+        // the evicted message is always the oldest, so its entries are at the front
+        void dropFront(int seq) {
+            while (start < end && seqs[start] == seq) {
+                start++;
+            }
+        }
+
+        boolean isEmpty() {
+            return start == end;
+        }
+    }
+
+    /** A page of hits, best first, each formatted as "#seq message". */
+    public static class Page {
+        public final int totalHits;
+        public final int page;
+        public final int pages;
+        public final List<String> hits;
+
+        Page(int totalHits, int page, int pages, List<String> hits) {
+            this.totalHits = totalHits;
+            this.page = page;
+            this.pages = pages;
+            this.hits = hits;
+        }
+    }
+
+    public void add(long seq, String message) {
+        for (String term : tokenize(message)) {
+            terms.computeIfAbsent(term, t -> new Postings()).add((int) seq);
+        }
+    }
+
+    public void remove(long seq, String message) {
+        for (String term : distinctTerms(message)) {
+            Postings p = terms.get(term);
+            if (p != null) {
+                p.dropFront((int) seq);
+                if (p.isEmpty()) {
+                    terms.remove(term);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ranks the messages in {@code [firstSeq, firstSeq + window)} that contain any of the query terms by
+     * tf-idf, newest first on ties, and returns page {@code page} (1-based). {@code message} resolves a
+     * sequence id to its text.
+     */
+    public Page search(String query, long firstSeq, int window, int page, int pageSize, LongFunction<String> message) {
+        float[] scores = new float[Math.max(window, 1)];
+        int[] touched = new int[16];
+        int hits = 0;
+        for (String term : distinctTerms(query)) {
+            Postings p = terms.get(term);
+            if (p == null) {
+                continue;
+            }
+            int df = 0;
+            for (int i = p.start; i < p.end; i++) {
+                if (i == p.start || p.seqs[i] != p.seqs[i - 1]) {
+                    df++;
+                }
+            }
+            float idf = (float) Math.log(1.0 + (double) window / df);
+            int i = p.start;
+            while (i < p.end) {
+                int seq = p.seqs[i];
+                int tf = 0;
+                while (i < p.end && p.seqs[i] == seq) {
+                    tf++;
+                    i++;
+                }
+                int slot = seq - (int) firstSeq;
+                if (slot < 0 || slot >= window) {
+                    continue;
+                }
+                if (scores[slot] == 0) {
+                    if (hits == touched.length) {
+                        touched = Arrays.copyOf(touched, hits * 2);
+                    }
+                    touched[hits++] = slot;
+                }
+                scores[slot] += (float) (1 + Math.log(tf)) * idf;
+            }
+        }
+
+        int pages = Math.max(1, (hits + pageSize - 1) / pageSize);
+        int from = (page - 1) * pageSize;
+        if (from >= hits) {
+            return new Page(hits, page, pages, List.of());
+        }
+        // scores are positive, so their bits sort like the floats; the slot breaks ties towards newer messages
+        long[] order = new long[hits];
+        for (int i = 0; i < hits; i++) {
+            order[i] = ((long) Float.floatToIntBits(scores[touched[i]]) << 32) | touched[i];
+        }
+        Arrays.sort(order);
+        int to = Math.min(hits, from + pageSize);
+        List<String> result = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            long seq = firstSeq + (int) order[hits - 1 - i];
+            result.add("#" + seq + " " + message.apply(seq));
+        }
+        return new Page(hits, page, pages, result);
+    }
+
+    // lower-cased runs of letters and digits, in order, repeats kept
+    static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            while (i < n && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int s = i;
+            while (i < n && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > s && i - s <= MAX_TERM_LENGTH) {
+                out.add(text.substring(s, i).toLowerCase(Locale.ROOT));
+            }
+        }
+        return out;
+    }
+
+    static Set<String> distinctTerms(String text) {
+        return new LinkedHashSet<>(tokenize(text));
+    }
+}
@@ -2,17 +2,39 @@ import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public class Server {
-    private static final int PORT = 9999;
+    private static final int PORT = Integer.getInteger("chat.port", 9999);
+    private static final int SEARCH_PAGE_SIZE = Integer.getInteger("chat.search.page", 10);
+    private static final int ACCEPTORS = Math.max(1, Integer.getInteger("chat.acceptors",
+            Math.min(4, Runtime.getRuntime().availableProcessors())));
+    private static final int BACKLOG = Integer.getInteger("chat.backlog", 512);
+    // clients are told to reconnect at staggered times across this window when the server drains
+    private static final long DRAIN_WINDOW_MS = Long.getLong("chat.drain.window", 5_000);
+    private static final long DRAIN_GRACE_MS = 2_000;
+    // lines a connection may have waiting for its writer; a client that falls this far behind is dropped
+    private static final int OUTBOX_SIZE = Integer.getInteger("chat.outbox.size", 1024);
+    // how long a closing connection gets to flush its outbox before the socket is closed under it
+    private static final long CLOSE_GRACE_MS = 2_000;
 
     // default prompt
     private static final String DEFAULT_AI_PROMPT =
@@ -21,35 +43,181 @@ public class Server {
     private final Map<String, ChatRoom> rooms = new HashMap<>();
     private final ReadWriteLock roomsLock = new ReentrantReadWriteLock();
     private final UserManager userManager = new UserManager();
-    private final Map<String, PrintWriter> activeClients = new HashMap<>();
-    private final ReadWriteLock clientsLock = new ReentrantReadWriteLock();
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private final FanOutEngine fanOut = new FanOutEngine();
+    private final SessionRegistry<ConnectionHandler> sessions = new SessionRegistry<>();
+    private final PresenceService presence = new PresenceService(this::publishPresence);
+    private ClusterNode cluster;
+    // every open connection, logged in or not, so a drain can reach all of them
+    private final Set<ConnectionHandler> live = ConcurrentHashMap.newKeySet();
+    private final LongAdder slowConsumers = new LongAdder();
+    private final List<SSLServerSocket> listeners = new ArrayList<>();
+    private volatile boolean draining;
+    // prompt in, reply out; ollama unless replaced (the soak harness plugs in a stub)
+    private volatile Function<String, String> aiModel = Server::ollamaReply;
 
     public static void main(String[] args) throws Exception {
         validateTLSConfiguration();
+        try {
+            start(true);
+        } catch (IllegalStateException e) {
+            // an unreadable user snapshot; better down than overwriting it with a partial table
+            Log.error(e.getMessage());
+            System.exit(1);
+        }
+    }
 
-        SSLServerSocketFactory ssf = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
-        SSLServerSocket serverSocket = (SSLServerSocket) ssf.createServerSocket(PORT);
-
-        serverSocket.setEnabledProtocols(new String[]{"TLSv1.3","TLSv1.2"});
-        serverSocket.setEnabledCipherSuites(new String[]{
-                "TLS_AES_256_GCM_SHA384",
-                "TLS_AES_128_GCM_SHA256",
-                "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
-                "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"
-        });
-
-        System.err.println("TLS Server listening on port " + PORT);
-        System.err.println("Using keystore: " + System.getProperty("javax.net.ssl.keyStore", "default"));
+    /**
+     * Binds the port and starts the acceptors. A standalone server also takes over from a running one,
+     * records its pid and drains on SIGTERM; an embedded one is stopped with {@link #shutdown()}.
+     */
+    static Server start(boolean standalone) throws IOException {
+        // bound before any state is loaded, so during a takeover new connections queue here instead of failing
+        List<SSLServerSocket> listeners = openListeners();
+        Log.info("TLS Server listening on port " + PORT + " with " + ACCEPTORS + " acceptors on "
+                + listeners.size() + " socket(s)");
+        Log.info("Using keystore: " + System.getProperty("javax.net.ssl.keyStore", "default"));
+        if (standalone) {
+            Handover.takeOver();
+        }
 
         Server srv = new Server();
+        srv.listeners.addAll(listeners);
+        for (ChatRoom room : Handover.loadRooms()) {
+            srv.rooms.put(room.getChatRoomName(), room);
+        }
         srv.userManager.setServer(srv);
+        srv.cluster = ClusterNode.fromSystemProperties(srv::onRelay);
+        if (srv.cluster != null) {
+            srv.cluster.setReplication(srv.userManager::replicationSnapshot, srv.userManager::applyReplicated);
+            srv.userManager.setReplicator(srv.cluster::replicate);
+            srv.cluster.setDirectMessages(srv.clusterMailboxes());
+            srv.cluster.start();
+        }
+        if (standalone) {
+            Handover.writePid();
+            Runtime.getRuntime().addShutdownHook(new Thread(srv::drain, "drain"));
+        }
+
+        for (int i = 0; i < ACCEPTORS; i++) {
+            SSLServerSocket listener = listeners.get(i % listeners.size());
+            new Thread(() -> srv.acceptLoop(listener), "acceptor-" + i).start();
+        }
+        return srv;
+    }
+
+    // stops accepting and drops every connection at once, without the staggered migration of drain()
+    void shutdown() {
+        draining = true;
+        for (SSLServerSocket listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (ConnectionHandler h : live) {
+            h.close();
+        }
+        presence.close();
+    }
+
+    void setAiModel(Function<String, String> model) {
+        aiModel = model;
+    }
+
+    int openConnections() {
+        return live.size();
+    }
+
+    // one socket per acceptor with SO_REUSEPORT, so the kernel spreads connections across them and a
+    // replacement process can bind the port while this one drains; otherwise the acceptors share one socket
+    private static List<SSLServerSocket> openListeners() throws IOException {
+        SSLServerSocketFactory ssf = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
+        List<SSLServerSocket> sockets = new ArrayList<>();
+        for (int i = 0; i < ACCEPTORS; i++) {
+            SSLServerSocket serverSocket = (SSLServerSocket) ssf.createServerSocket();
+            boolean reusePort = serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (!reusePort && i > 0) {
+                serverSocket.close();
+                break;
+            }
+            if (reusePort) {
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(PORT), BACKLOG);
+
+            serverSocket.setEnabledProtocols(new String[]{"TLSv1.3","TLSv1.2"});
+            serverSocket.setEnabledCipherSuites(new String[]{
+                    "TLS_AES_256_GCM_SHA384",
+                    "TLS_AES_128_GCM_SHA256",
+                    "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+                    "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"
+            });
+            sockets.add(serverSocket);
+        }
+        return sockets;
+    }
+
+    private void acceptLoop(SSLServerSocket serverSocket) {
+        while (!draining) {
+            try {
+                SSLSocket sock = (SSLSocket) serverSocket.accept();
+                sock.setNeedClientAuth(false);
+                sock.setKeepAlive(true);
+                Thread.startVirtualThread(new ConnectionHandler(sock));
+            } catch (IOException e) {
+                if (!draining) {
+                    Log.warn("Accept error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // runs on SIGTERM: stop accepting, snapshot state for the next process, then move clients over gradually
+    private void drain() {
+        draining = true;
+        long start = System.nanoTime();
+        for (SSLServerSocket listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException ignored) {
+            }
+        }
+        // the cluster port is not shared: free it before the rooms snapshot releases a process taking over
+        if (cluster != null) {
+            cluster.stopAccepting();
+        }
+        // from here on the user snapshot belongs to the process taking over; see the DRAINING replies below
+        userManager.handOver();
+        List<ChatRoom> snapshot;
+        roomsLock.readLock().lock();
+        try {
+            snapshot = new ArrayList<>(rooms.values());
+        } finally {
+            roomsLock.readLock().unlock();
+        }
+        // written last: a process taking over waits for this file
+        Handover.saveRooms(snapshot);
 
-        while (true) {
-            SSLSocket sock = (SSLSocket) serverSocket.accept();
-            sock.setNeedClientAuth(false);
-            sock.setKeepAlive(true);
-            Thread.startVirtualThread(srv.new ConnectionHandler(sock));
+        List<ConnectionHandler> open = new ArrayList<>(live);
+        Log.info("Draining " + open.size() + " connections over " + DRAIN_WINDOW_MS + " ms");
+        for (int i = 0; i < open.size(); i++) {
+            open.get(i).migrate(DRAIN_WINDOW_MS * i / open.size());
         }
+        long deadline = System.currentTimeMillis() + DRAIN_WINDOW_MS + DRAIN_GRACE_MS;
+        while (!live.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        for (ConnectionHandler h : live) {
+            h.close();
+        }
+        Handover.releasePid();
+        Log.log(Log.Level.INFO, "Drained", null, null, System.nanoTime() - start);
     }
 
     private static void validateTLSConfiguration() {
@@ -82,7 +250,7 @@ public class Server {
 
         String keyStoreType = System.getProperty("javax.net.ssl.keyStoreType", "JKS");
         if (!keyStoreType.equals("JKS") && !keyStoreType.equals("PKCS12")) {
-            System.err.println("WARNING: Unusual keystore type: " + keyStoreType);
+            Log.warn("Unusual keystore type: " + keyStoreType);
         }
     }
 
@@ -110,26 +278,266 @@ public class Server {
         }
     }
 
+    private void joinRoom(String username, ChatRoom room) {
+        room.addUser(username);
+        if (cluster != null) {
+            cluster.subscribe(room.getChatRoomName());
+        }
+    }
+
+    private void leaveRoom(String username, ChatRoom room) {
+        room.removeUser(username);
+        if (cluster != null && room.isEmpty()) {
+            cluster.unsubscribe(room.getChatRoomName());
+        }
+    }
+
+    // delivers to local members (recording it in the history if asked) and hands it to the other nodes
+    private void publish(ChatRoom room, String msg, boolean record) {
+        if (record) {
+            room.addMessage(msg);
+        }
+        broadcast(room, msg);
+        if (cluster != null) {
+            cluster.publish(room.getChatRoomName(), msg, record);
+        }
+    }
+
+    private void publishPresence(String roomName, String line) {
+        ChatRoom room = getRoom(roomName);
+        if (room != null) {
+            publish(room, line, false);
+        }
+    }
+
+    private ChatRoom getRoom(String name) {
+        roomsLock.readLock().lock();
+        try {
+            return rooms.get(name);
+        } finally {
+            roomsLock.readLock().unlock();
+        }
+    }
+
+    // a message published on another node for a room that has members here
+    private void onRelay(String roomName, String msg, boolean record) {
+        ChatRoom room = getRoom(roomName);
+        if (room == null) {
+            return;
+        }
+        if (record) {
+            room.addMessage(msg);
+        }
+        broadcast(room, msg);
+    }
+
+    // connections follow several rooms, so every delivered line carries its room
+    private void broadcast(ChatRoom room, String line) {
+        String msg = "[" + room.getChatRoomName() + "] " + line;
+        List<ConnectionHandler> targets = new ArrayList<>();
+        int compressing = 0;
+        // walk the room's members rather than every connected client
+        for (String member : room.getUsers()) {
+            for (ConnectionHandler h : sessions.connections(member)) {
+                targets.add(h);
+                if (h.compress) compressing++;
+            }
+        }
+        // compress once up front; the cpu cost is split across the recipients sharing the frame
+        String frame = null;
+        long cpuShare = 0;
+        if (compressing > 0 && msg.length() >= PayloadCodec.THRESHOLD) {
+            long start = System.nanoTime();
+            frame = PayloadCodec.encode(msg);
+            cpuShare = (System.nanoTime() - start) / compressing;
+        }
+        String sharedFrame = frame;
+        long sharedCpu = cpuShare;
+        fanOut.fanOut(targets, h -> h.deliver(msg, sharedFrame, sharedCpu));
+    }
+
+    // one registry lookup, then either a write per open connection or one mailbox enqueue
+    private String directMessage(String from, String to, String text) {
+        if (!userManager.userExists(to)) {
+            return "UNKNOWN_USER " + to;
+        }
+        String msg = "[dm] " + from + ": " + text;
+        if (cluster != null) {
+            // the user may be connected to another node; the node that owns their mailbox finds out
+            List<ConnectionHandler> local = sessions.connections(to);
+            if (local.isEmpty()) {
+                cluster.directMessage(to, msg);
+                return "MSG_RELAYED " + to;
+            }
+            deliverDirect(to, msg);
+            return "MSG_SENT " + to;
+        }
+        List<ConnectionHandler> targets = sessions.connectionsOrQueue(to, msg);
+        for (ConnectionHandler h : targets) {
+            h.sendMessage(msg);
+        }
+        return targets.isEmpty() ? "MSG_QUEUED " + to : "MSG_SENT " + to;
+    }
+
+    private boolean deliverDirect(String to, String msg) {
+        List<ConnectionHandler> targets = sessions.connections(to);
+        for (ConnectionHandler h : targets) {
+            h.sendMessage(msg);
+        }
+        return !targets.isEmpty();
+    }
+
+    // in cluster mode this node's registry serves as mailbox store for the users it owns
+    private ClusterNode.DirectMessages clusterMailboxes() {
+        return new ClusterNode.DirectMessages() {
+            @Override
+            public boolean deliver(String user, String msg) {
+                return deliverDirect(user, msg);
+            }
+
+            @Override
+            public void queue(String user, String msg) {
+                sessions.queue(user, msg);
+            }
+
+            @Override
+            public List<String> drain(String user) {
+                return sessions.drainMailbox(user);
+            }
+
+            @Override
+            public Collection<String> queuedUsers() {
+                return sessions.mailboxUsers();
+            }
+
+            @Override
+            public Collection<String> onlineUsers() {
+                return sessions.onlineUserNames();
+            }
+        };
+    }
+
+    // marks the end of an outbox; compared by identity
+    private static final String CLOSE = new String("CLOSE");
+
     private class ConnectionHandler implements Runnable {
         private final SSLSocket sock;
-        private PrintWriter clientOutput;
+        // everything sent to the client goes through here; only the writer thread touches the socket,
+        // so a broadcast never waits on a client with a full TCP window
+        private final ArrayBlockingQueue<String> outbox = new ArrayBlockingQueue<>(OUTBOX_SIZE);
+        private Thread writer;
+        private volatile boolean closing;
+        private volatile boolean compress;
+        // where plain chat lines from this connection go
+        private ChatRoom activeRoom;
+        private final PayloadCodec.Stats compressionStats = new PayloadCodec.Stats();
 
         ConnectionHandler(SSLSocket sock) {
             this.sock = sock;
         }
 
+        // asks the client to reconnect after delayMs; by then it lands on the process that took over
+        void migrate(long delayMs) {
+            sendMessage("MIGRATE " + delayMs);
+        }
+
+        // the writer sends what is already queued and then closes the socket
+        void close() {
+            closing = true;
+            if (!outbox.offer(CLOSE)) {
+                abort();
+            }
+        }
+
+        // only the writer closes gracefully: the TLS close_notify needs the lock a blocked write holds
+        private void closeSocket() {
+            try {
+                sock.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        // for every other thread: with SO_LINGER 0 the close resets the connection instead of waiting for
+        // a writer stuck on a peer that stopped reading
+        private void abort() {
+            try {
+                sock.setSoLinger(true, 0);
+            } catch (IOException ignored) {
+            }
+            closeSocket();
+        }
+
         private void sendMessage(String msg) {
-            clientOutput.println(msg);
+            if (!compress) {
+                enqueue(msg);
+                return;
+            }
+            long start = System.nanoTime();
+            String frame = PayloadCodec.encode(msg);
+            deliver(msg, frame, System.nanoTime() - start);
+        }
+
+        // queues either the precompressed frame or the plain message
+        private void deliver(String msg, String frame, long cpuNanos) {
+            if (compress && frame != null) {
+                compressionStats.record(PayloadCodec.utf8Length(msg), frame.length(), cpuNanos);
+                enqueue(frame);
+            } else {
+                enqueue(msg);
+            }
+        }
+
+        private void enqueue(String line) {
+            if (closing || outbox.offer(line)) {
+                return;
+            }
+            // not reading fast enough to keep up; cut it loose rather than buffer without bound
+            closing = true;
+            slowConsumers.increment();
+            Log.warn("Disconnecting slow consumer " + sock.getRemoteSocketAddress() + ": " + OUTBOX_SIZE + " lines queued");
+            abort();
+        }
+
+        // writes whatever has queued up since the last write in one go
+        private void writeLoop(OutputStream out) {
+            List<String> batch = new ArrayList<>();
+            StringBuilder buf = new StringBuilder();
+            try {
+                while (true) {
+                    batch.add(outbox.take());
+                    outbox.drainTo(batch);
+                    boolean done = false;
+                    for (String line : batch) {
+                        if (line == CLOSE) {
+                            done = true;
+                            break;
+                        }
+                        buf.append(line).append('\n');
+                    }
+                    // the socket stream takes a lock rather than a monitor, so a blocked write does not pin a carrier
+                    out.write(buf.toString().getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    batch.clear();
+                    buf.setLength(0);
+                    if (done) {
+                        break;
+                    }
+                }
+            } catch (IOException | InterruptedException ignored) {
+                // the reader sees the closed socket and cleans up
+            } finally {
+                closeSocket();
+            }
         }
 
         @Override
         public void run() {
             String username = null;
-            try (
-                    BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-                    PrintWriter writer = new PrintWriter(sock.getOutputStream(), true)
-            ) {
-                this.clientOutput = writer;
+            live.add(this);
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+                OutputStream os = sock.getOutputStream();
+                writer = Thread.startVirtualThread(() -> writeLoop(os));
                 String line = in.readLine();
                 if (line == null) return;
 
@@ -142,8 +550,20 @@ public class Server {
                         return;
                     }
                 } else if (line.startsWith("/login ")) {
+                    // a new token would not survive the handover; the retry reaches the process taking over
+                    if (draining) {
+                        sendMessage("AUTH_BUSY");
+                        return;
+                    }
                     String[] p = line.split(" ", 3);
-                    var tm = userManager.authenticateOrRegister(p[1], p[2]);
+                    TokenManager tm;
+                    try {
+                        tm = userManager.authenticateOrRegister(p[1], p[2]);
+                    } catch (RejectedExecutionException e) {
+                        // too many logins queued for the password hashing pool; the client can retry
+                        sendMessage("AUTH_BUSY");
+                        return;
+                    }
                     if (tm == null) {
                         sendMessage("AUTH_FAILED");
                         return;
@@ -155,32 +575,52 @@ public class Server {
                     return;
                 }
 
-                // register active client
-                clientsLock.writeLock().lock();
-                try {
-                    activeClients.put(username, clientOutput);
-                } finally {
-                    clientsLock.writeLock().unlock();
+                // register this connection next to any others the user has open
+                SessionRegistry.Registration registration = sessions.register(username, this);
+                if (cluster != null) {
+                    cluster.userOnline(username);
                 }
 
-                // rejoin saved room if any
-                ChatRoom prev = userManager.getChatRoom(username);
-                if (prev != null) {
-                    ChatRoom srvRoom = getOrCreateRoom(prev.getChatRoomName());
-                    srvRoom.addUser(username);
-                    userManager.setRoom(username, srvRoom);
-                    sendMessage("-- You have rejoined the room: " + srvRoom.getChatRoomName() + " --");
-                    System.out.println();
+                // rejoin every saved room; the first one becomes the active room
+                List<String> saved = userManager.getRoomNames(username);
+                for (String name : saved) {
+                    ChatRoom srvRoom = getOrCreateRoom(name);
+                    joinRoom(username, srvRoom);
+                    if (activeRoom == null) {
+                        activeRoom = srvRoom;
+                    }
+                }
+                if (activeRoom != null) {
+                    sendMessage("-- You have rejoined the rooms: " + String.join(", ", saved)
+                            + " (active: " + activeRoom.getChatRoomName() + ") --");
+                }
+                // only the first connection changes the user's presence
+                if (registration.first) {
+                    presence.connected(username, saved);
+                }
+                for (String msg : registration.queued) {
+                    sendMessage(msg);
                 }
 
                 while ((line = in.readLine()) != null) {
                     if (line.startsWith("/join ")) {
                         String spec = line.substring(6).trim();
+                        boolean ai = spec.startsWith("AI:");
+                        String[] parts = ai ? spec.substring(3).split("\\|", 2) : new String[]{spec};
+                        String rn = parts[0].trim();
+                        if (!UserManager.fitsName(rn)) {
+                            sendMessage("NAME_TOO_LONG " + UserManager.MAX_NAME_BYTES);
+                            continue;
+                        }
+                        // checked before the room is created, so new rooms are bounded by the per-user join rate;
+                        // only existing rooms get a room bucket, so made-up names cannot grow the limiter
+                        String limitedRoom = getRoom(rn) != null ? rn : null;
+                        if (!rateLimiter.tryAcquire(RateLimiter.Kind.JOIN, username, limitedRoom)) {
+                            sendMessage("RATE_LIMITED join");
+                            continue;
+                        }
                         ChatRoom room;
-                        if (spec.startsWith("AI:")) {
-                            String payload = spec.substring(3);
-                            String[] parts = payload.split("\\|", 2);
-                            String rn    = parts[0].trim();
+                        if (ai) {
                             String prmpt = (parts.length > 1 && !parts[1].isEmpty())
                                     ? parts[1].trim()
                                     : DEFAULT_AI_PROMPT;
@@ -188,39 +628,55 @@ public class Server {
                         } else {
                             room = getOrCreateRoom(spec);
                         }
-                        // leave old
-                        ChatRoom old = userManager.getChatRoom(username);
-                        if (old != null) {
-                            old.removeUser(username);
+                        // joining keeps the other subscriptions; a room we are already in just becomes active
+                        if (room.hasUser(username)) {
+                            activeRoom = room;
+                            sendMessage("-- Active room: " + room.getChatRoomName() + " --");
+                            continue;
                         }
-                        // join new
-                        room.addUser(username);
-                        userManager.setRoom(username, room);
-                        System.out.println();
-                        broadcast(room, "-- " + username + " has joined the room: " + room.getChatRoomName() + " --");
-                        System.out.println();
-
-                    } else if (line.equals("/leave")) {
-                        ChatRoom room = userManager.getChatRoom(username);
-                        if (room == null) {
-                            sendMessage("You are not in any room. Type /rooms to see the available chat rooms :)");
+                        // saved rooms are frozen while draining; the client repeats it after MIGRATE
+                        if (draining) {
+                            sendMessage("DRAINING");
+                            continue;
+                        }
+                        if (!userManager.addRoom(username, room.getChatRoomName())) {
+                            sendMessage("TOO_MANY_ROOMS");
+                            continue;
+                        }
+                        activeRoom = room;
+                        joinRoom(username, room);
+                        Log.log(Log.Level.INFO, "joined", username, room.getChatRoomName(), -1);
+                        sendMessage("-- You have joined the room: " + room.getChatRoomName() + " --");
+                        presence.joined(room.getChatRoomName(), username);
+
+                    } else if (line.equals("/leave") || line.startsWith("/leave ")) {
+                        String target = line.substring(6).trim();
+                        ChatRoom room = target.isEmpty() ? activeRoom : getRoom(target);
+                        if (room == null || !room.hasUser(username)) {
+                            sendMessage("You are not in that room. Type /rooms to see the available chat rooms :)");
+                        } else if (draining) {
+                            sendMessage("DRAINING");
                         } else {
-                            room.removeUser(username);
-                            userManager.setRoom(username, null);
-                            System.out.println();
+                            leaveRoom(username, room);
+                            userManager.removeRoom(username, room.getChatRoomName());
+                            if (room == activeRoom) {
+                                activeRoom = null;
+                            }
+                            Log.log(Log.Level.INFO, "left", username, room.getChatRoomName(), -1);
                             sendMessage("-- You have left the room: " + room.getChatRoomName() + " --");
-                            broadcast(room, "-- " + username + " has left the room: " + room.getChatRoomName() + " --");
+                            presence.left(room.getChatRoomName(), username);
                         }
 
                     } else if (line.equals("/rooms")) {
+                        StringBuilder listing = new StringBuilder();
                         roomsLock.readLock().lock();
                         try {
                             if (rooms.isEmpty()) {
-                                sendMessage("No rooms available");
+                                listing.append("No rooms available");
                             } else {
-                                sendMessage("Available rooms:");
+                                listing.append("Available rooms:");
                                 for (ChatRoom room : rooms.values()) {
-                                    sendMessage(String.format("- %s (%d users)",
+                                    listing.append('\n').append(String.format("- %s (%d users)",
                                             room.getChatRoomName(),
                                             room.getUserCount()
                                     ));
@@ -229,19 +685,136 @@ public class Server {
                         } finally {
                             roomsLock.readLock().unlock();
                         }
+                        // sent as one payload so large listings go out as a single compressed frame
+                        sendMessage(listing.toString());
+
+                    } else if (line.startsWith("/compress")) {
+                        String[] mode = line.substring(9).trim().split("\\s+");
+                        if (mode[0].equals("on")) {
+                            // a client built with another dictionary would inflate garbage; keep it on plain text
+                            if (mode.length > 1 && PayloadCodec.supportsDictionary(mode[1])) {
+                                compress = true;
+                                sendMessage("COMPRESS_ON " + PayloadCodec.THRESHOLD + " " + PayloadCodec.DICTIONARY_ID);
+                            } else {
+                                compress = false;
+                                sendMessage("COMPRESS_OFF dictionary");
+                            }
+                        } else if (mode[0].equals("off")) {
+                            compress = false;
+                            sendMessage("COMPRESS_OFF");
+                        } else {
+                            sendMessage("Usage: /compress on <dictionary id>|off");
+                        }
+
+                    } else if (line.startsWith("/msg ")) {
+                        String[] p = line.split(" ", 3);
+                        if (p.length < 3 || p[2].isBlank()) {
+                            sendMessage("Usage: /msg <user> <text>");
+                            continue;
+                        }
+                        if (!rateLimiter.tryAcquire(RateLimiter.Kind.CHAT, username, null)) {
+                            sendMessage("RATE_LIMITED chat");
+                            continue;
+                        }
+                        sendMessage(directMessage(username, p[1], p[2]));
+
+                    } else if (line.startsWith("/search ")) {
+                        String[] p = line.substring(8).trim().split("\\s+");
+                        if (p.length < 2) {
+                            sendMessage("Usage: /search <room> <terms> [page]");
+                            continue;
+                        }
+                        ChatRoom room = getRoom(p[0]);
+                        if (room == null) {
+                            sendMessage("NO_SUCH_ROOM");
+                            continue;
+                        }
+                        // history is for members only, same as the live messages
+                        if (!room.hasUser(username)) {
+                            sendMessage("NOT_IN_ROOM");
+                            continue;
+                        }
+                        int page = 1;
+                        int termsEnd = p.length;
+                        // a trailing number is the page, as long as some terms come before it
+                        if (p.length > 2 && p[p.length - 1].matches("\\d{1,6}")) {
+                            page = Math.max(1, Integer.parseInt(p[p.length - 1]));
+                            termsEnd--;
+                        }
+                        if (!rateLimiter.tryAcquire(RateLimiter.Kind.CHAT, username, null)) {
+                            sendMessage("RATE_LIMITED chat");
+                            continue;
+                        }
+                        String query = String.join(" ", Arrays.copyOfRange(p, 1, termsEnd));
+                        SearchIndex.Page result = room.search(query, page, SEARCH_PAGE_SIZE);
+                        StringBuilder out = new StringBuilder();
+                        out.append(String.format("Search \"%s\" in %s: %d hits, page %d/%d",
+                                query, room.getChatRoomName(), result.totalHits, result.page, result.pages));
+                        for (String hit : result.hits) {
+                            out.append('\n').append(hit);
+                        }
+                        // one payload, like /rooms, so a full page compresses as a single frame
+                        sendMessage(out.toString());
+
+                    } else if (line.equals("/who") || line.startsWith("/who ")) {
+                        String target = line.substring(4).trim();
+                        ChatRoom room = target.isEmpty() ? activeRoom : getRoom(target);
+                        if (room == null) {
+                            sendMessage(target.isEmpty() ? "NOT_IN_ROOM" : "NO_SUCH_ROOM");
+                            continue;
+                        }
+                        List<String> present = new ArrayList<>();
+                        int offline = 0;
+                        for (String member : room.getUsers()) {
+                            if (!sessions.connections(member).isEmpty()) {
+                                present.add(member);
+                            } else if (presence.isAway(member)) {
+                                present.add(member + " (away)");
+                            } else {
+                                offline++;
+                            }
+                        }
+                        present.sort(null);
+                        sendMessage("Members of " + room.getChatRoomName() + " (" + present.size() + "): "
+                                + String.join(", ", present) + (offline > 0 ? "; " + offline + " offline" : ""));
+
+                    } else if (line.equals("/stats")) {
+                        sendMessage(compressionStats.summary());
+                        sendMessage(rateLimiter.summary());
+                        sendMessage(fanOut.summary());
+                        sendMessage("outbox: " + slowConsumers.sum() + " slow consumers disconnected");
+                        sendMessage(userManager.authSummary());
+                        sendMessage(presence.summary());
+                        if (cluster != null) {
+                            sendMessage(cluster.summary());
+                        }
+                        sendMessage("log: " + Log.droppedCount() + " events dropped");
                     }
                     else if (line.equals("/help")) {
                         sendMessage("Commands:");
                         sendMessage("  /join <room>");
                         sendMessage("  /join AI:<name>|<prompt>    (or AI:<name> for default AI)");
-                        sendMessage("  /leave");
+                        sendMessage("  /leave [room]               (the active room if none given)");
                         sendMessage("  /rooms");
+                        sendMessage("  /who [room]");
+                        sendMessage("  /msg <user> <text>");
+                        sendMessage("  /search <room> <terms> [page]");
+                        sendMessage("  /compress on|off");
+                        sendMessage("  /stats");
                         sendMessage("  /quit");
                         sendMessage("  /help");
 
                     } else if (line.equals("/quit")) {
-                        ChatRoom room = userManager.getChatRoom(username);
-                        if (room != null) room.removeUser(username);
+                        // the logout could not be saved here; ChatClient repeats it on the process taking over
+                        if (draining) {
+                            sendMessage("DRAINING");
+                            break;
+                        }
+                        for (String name : userManager.getRoomNames(username)) {
+                            ChatRoom room = getRoom(name);
+                            if (room != null) leaveRoom(username, room);
+                            presence.left(name, username);
+                        }
                         userManager.invalidateToken(username);
                         sendMessage("Goodbye!");
                         break;
@@ -250,111 +823,134 @@ public class Server {
                         sendMessage("UNKNOWN_COMMAND");
 
                     } else {
-                        ChatRoom room = userManager.getChatRoom(username);
+                        ChatRoom room = activeRoom;
+                        // another session of this user may have left the room since it became active
+                        if (room != null && !room.hasUser(username)) {
+                            activeRoom = null;
+                            room = null;
+                        }
                         if (room == null) {
                             sendMessage("NOT_IN_ROOM");
                             continue;
                         }
+                        if (!rateLimiter.tryAcquire(RateLimiter.Kind.CHAT, username, room.getChatRoomName())) {
+                            sendMessage("RATE_LIMITED chat");
+                            continue;
+                        }
                         String tagged = username + ": " + line;
-                        room.addMessage(tagged);
-                        broadcast(room, tagged);
+                        publish(room, tagged, true);
 
                         if (room.isAI()) {
+                            if (!rateLimiter.tryAcquire(RateLimiter.Kind.AI, username, room.getChatRoomName())) {
+                                sendMessage("RATE_LIMITED ai");
+                                continue;
+                            }
+                            long start = System.nanoTime();
                             String aiResp = generateAIReply(room);
+                            Log.log(Log.Level.INFO, "ai reply", username, room.getChatRoomName(), System.nanoTime() - start);
                             String botMsg = "Bot: " + aiResp;
-                            room.addMessage(botMsg);
-                            broadcast(room, botMsg);
+                            publish(room, botMsg, true);
                         }
                     }
                 }
             } catch (SocketException se) {
-                System.err.println("Socket error for " + username + ": " + se.getMessage());
+                // the drain closes whatever has not migrated by the deadline
+                if (!draining) {
+                    Log.log(Log.Level.WARN, "socket error: " + se.getMessage(), username, null, -1);
+                }
             } catch (IOException ioe) {
-                System.err.println("I/O error for " + username + ": " + ioe.getMessage());
+                Log.log(Log.Level.WARN, "I/O error: " + ioe.getMessage(), username, null, -1);
             } finally {
+                live.remove(this);
+                stopWriter();
                 if (username != null) {
-                    clientsLock.writeLock().lock();
-                    try {
-                        activeClients.remove(username);
-                    } finally {
-                        clientsLock.writeLock().unlock();
+                    boolean last = sessions.unregister(username, this);
+                    if (cluster != null) {
+                        String user = username;
+                        cluster.userOffline(user, () -> sessions.connections(user).isEmpty());
+                    }
+                    // empty after /quit, which has already left every room
+                    if (last) {
+                        presence.disconnected(username, userManager.getRoomNames(username));
                     }
                 }
             }
         }
 
-        private void broadcast(ChatRoom room, String msg) {
-            List<PrintWriter> targets = new ArrayList<>();
-            clientsLock.readLock().lock();
-            try {
-                for (var e : activeClients.entrySet()) {
-                    if (room.hasUser(e.getKey())) {
-                        targets.add(e.getValue());
-                    }
+        // lets the writer flush the goodbye or error line, but not for longer than CLOSE_GRACE_MS
+        private void stopWriter() {
+            close();
+            if (writer != null) {
+                try {
+                    writer.join(CLOSE_GRACE_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
-            } finally {
-                clientsLock.readLock().unlock();
-            }
-            for (PrintWriter w : targets) {
-                w.println(msg);
             }
+            // a no-op when the writer finished; otherwise it is still blocked on the peer
+            abort();
         }
 
         private String generateAIReply(ChatRoom room) {
-            final String model = "llama3.2:1b";
-
             StringBuilder prompt = new StringBuilder();
             prompt.append(room.getPrompt()).append("\n\n");
             for (String msg : room.getHistory()) {
                 prompt.append(msg).append("\n");
             }
             prompt.append("Bot: ");
+            return aiModel.apply(prompt.toString());
+        }
+    }
 
-            BiFunction<List<String>, StringBuilder, String> runCommand = (cmd, input) -> {
-                try {
-                    ProcessBuilder pb = new ProcessBuilder(cmd);
-                    pb.redirectErrorStream(true);
-                    Process proc = pb.start();
-
-                    if (input.length() > 0) {
-                        try (OutputStream os = proc.getOutputStream()) {
-                            os.write(input.toString().getBytes());
-                            os.flush();
-                        }
-                    }
+    private static String ollamaReply(String prompt) {
+        final String model = "llama3.2:1b";
 
-                    StringBuilder out = new StringBuilder();
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream()))) {
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            out.append(line).append("\n");
-                        }
+        BiFunction<List<String>, StringBuilder, String> runCommand = (cmd, input) -> {
+            try {
+                ProcessBuilder pb = new ProcessBuilder(cmd);
+                pb.redirectErrorStream(true);
+                Process proc = pb.start();
+
+                if (input.length() > 0) {
+                    try (OutputStream os = proc.getOutputStream()) {
+                        os.write(input.toString().getBytes());
+                        os.flush();
                     }
+                }
 
-                    proc.waitFor();
-                    return out.toString();
-                } catch (Exception e) {
-                    return "(OLLAMA ERROR: " + e.getMessage() + ")";
+                StringBuilder out = new StringBuilder();
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(proc.getInputStream()))) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        out.append(line).append("\n");
+                    }
                 }
-            };
 
-            String pullOut = runCommand.apply(
-                    List.of("ollama", "pull", model),
-                    new StringBuilder()
-            );
-            System.err.println("[ollama pull] " + pullOut.trim());
+                proc.waitFor();
+                return out.toString();
+            } catch (Exception e) {
+                return "(OLLAMA ERROR: " + e.getMessage() + ")";
+            }
+        };
+
+        String pullOut = runCommand.apply(
+                List.of("ollama", "pull", model),
+                new StringBuilder()
+        );
+        if (Log.enabled(Log.Level.DEBUG)) {
+            Log.debug("[ollama pull] " + pullOut.trim());
+        }
 
-            String runOut = runCommand.apply(
-                    List.of("ollama", "run", model),
-                    prompt
-            );
+        String runOut = runCommand.apply(
+                List.of("ollama", "run", model),
+                new StringBuilder(prompt)
+        );
 
-            String clean = runOut
-                    .replaceAll("\\u001B\\[[;?0-9]*[a-zA-Z]", "")
-                    .replaceAll("[^\\x20-\\x7E\\r\\n]", "")
-                    .trim();
+        String clean = runOut
+                .replaceAll("\\u001B\\[[;?0-9]*[a-zA-Z]", "")
+                .replaceAll("[^\\x20-\\x7E\\r\\n]", "")
+                .trim();
 
-            return clean;
-        }
+        return clean;
     }
-}
\ No newline at end of file
+}
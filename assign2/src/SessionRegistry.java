@@ -0,0 +1,139 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Maps each user to every connection they have open, plus a bounded mailbox for messages sent while
+// they were offline. Connection lists are immutable and replaced on change, so a lookup is one map read.
+public class SessionRegistry<C> {
+    private final int mailboxSize;
+    private final Map<String, List<C>> sessions = new ConcurrentHashMap<>();
+    private final Map<String, ArrayDeque<String>> mailboxes = new ConcurrentHashMap<>();
+
+    /** What {@link #register} saw: the queued mailbox, and whether no other connection was open. */
+    public static final class Registration {
+        public final List<String> queued;
+        public final boolean first;
+
+        Registration(List<String> queued, boolean first) {
+            this.queued = queued;
+            this.first = first;
+        }
+    }
+
+    public SessionRegistry() {
+        this(Integer.getInteger("chat.mailbox.size", 100));
+    }
+
+    public SessionRegistry(int mailboxSize) {
+        this.mailboxSize = mailboxSize;
+    }
+
+    /**
+     * Adds a connection and returns whatever was queued for the user while they were offline. {@code first}
+     * is decided inside the update, so of two concurrent logins exactly one sees it.
+     */
+    public Registration register(String user, C connection) {
+        List<String> pending = new ArrayList<>();
+        boolean[] first = new boolean[1];
+        // the mailbox is drained inside the same compute as the registration, so nothing slips in between
+        sessions.compute(user, (u, current) -> {
+            first[0] = current == null;
+            ArrayDeque<String> box = mailboxes.remove(u);
+            if (box != null) {
+                pending.addAll(box);
+            }
+            List<C> next = new ArrayList<>(current == null ? List.of() : current);
+            next.add(connection);
+            return List.copyOf(next);
+        });
+        return new Registration(pending, first[0]);
+    }
+
+    /** Removes a connection and returns whether it was the user's last one. */
+    public boolean unregister(String user, C connection) {
+        boolean[] last = new boolean[1];
+        sessions.computeIfPresent(user, (u, current) -> {
+            List<C> next = new ArrayList<>(current);
+            next.remove(connection);
+            last[0] = next.isEmpty();
+            return last[0] ? null : List.copyOf(next);
+        });
+        return last[0];
+    }
+
+    public List<C> connections(String user) {
+        List<C> c = sessions.get(user);
+        return c == null ? List.of() : c;
+    }
+
+    /**
+     * Returns the user's open connections, or an empty list after queueing {@code msg} in their mailbox
+     * because they have none. The oldest message is dropped when the mailbox is full.
+     */
+    public List<C> connectionsOrQueue(String user, String msg) {
+        List<C> c = sessions.get(user);
+        if (c != null) {
+            return c;
+        }
+        // slow path: re-check under the user's bin so a concurrent register either sees the message or is seen
+        List<List<C>> raced = new ArrayList<>(1);
+        sessions.compute(user, (u, current) -> {
+            if (current != null) {
+                raced.add(current);
+                return current;
+            }
+            enqueue(u, msg);
+            return null;
+        });
+        return raced.isEmpty() ? List.of() : raced.get(0);
+    }
+
+    /** Queues {@code msg} in the user's mailbox whether or not they are connected here (cluster mailboxes). */
+    public void queue(String user, String msg) {
+        sessions.compute(user, (u, current) -> {
+            enqueue(u, msg);
+            return current;
+        });
+    }
+
+    /** Empties the user's mailbox and returns what was in it. */
+    public List<String> drainMailbox(String user) {
+        List<String> pending = new ArrayList<>();
+        sessions.compute(user, (u, current) -> {
+            ArrayDeque<String> box = mailboxes.remove(u);
+            if (box != null) {
+                pending.addAll(box);
+            }
+            return current;
+        });
+        return pending;
+    }
+
+    // callers hold the user's bin in sessions
+    private void enqueue(String user, String msg) {
+        ArrayDeque<String> box = mailboxes.computeIfAbsent(user, x -> new ArrayDeque<>());
+        if (box.size() == mailboxSize) {
+            box.pollFirst();
+        }
+        box.addLast(msg);
+    }
+
+    public Set<String> onlineUserNames() {
+        return sessions.keySet();
+    }
+
+    public Set<String> mailboxUsers() {
+        return mailboxes.keySet();
+    }
+
+    public int onlineUsers() {
+        return sessions.size();
+    }
+
+    public int queuedMailboxes() {
+        return mailboxes.size();
+    }
+}
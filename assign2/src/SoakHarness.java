@@ -0,0 +1,398 @@
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Long-running soak test. Starts the server in this JVM with its state in a temp directory and a stub
+// AI model, drives it with simulated clients and injected faults, and samples heap, threads, file
+// descriptors, open connections and message latency. Exits 1 as soon as a metric stays beyond its
+// bound for several samples in a row, 0 if the whole run stays within bounds.
+//
+// java -Djavax.net.ssl.keyStore=server.jks -Djavax.net.ssl.keyStorePassword=<pw>
+//      -Djavax.net.ssl.trustStore=truststore.jks -Djavax.net.ssl.trustStorePassword=<pw>
+//      -Dchat.soak.duration=7200 -cp out/production/assign2 SoakHarness
+public class SoakHarness {
+    private static final long DURATION_S = Long.getLong("chat.soak.duration", 3600);
+    private static final long SAMPLE_S = Long.getLong("chat.soak.sample", 10);
+    private static final long WARMUP_S = Long.getLong("chat.soak.warmup", 60);
+    private static final int BREACHES_TO_FAIL = Integer.getInteger("chat.soak.breaches", 3);
+
+    private static final int CHATTERS = Integer.getInteger("chat.soak.clients", 100);
+    private static final int ROOMS = Integer.getInteger("chat.soak.rooms", 10);
+    private static final int SLOW_READERS = Integer.getInteger("chat.soak.slow", 5);
+    private static final int HALF_OPEN = Integer.getInteger("chat.soak.halfopen", 10);
+    private static final int CHURNERS = Integer.getInteger("chat.soak.churn", 10);
+    private static final int AI_CLIENTS = Integer.getInteger("chat.soak.ai", 5);
+    private static final int ABRUPT_PER_MIN = Integer.getInteger("chat.soak.abrupt", 30);
+    private static final long CHAT_INTERVAL_MS = Long.getLong("chat.soak.chat.interval", 1000);
+
+    // bounds: growth over the first sample after warmup, except latency which is absolute
+    private static final long MAX_HEAP_GROWTH_MB = Long.getLong("chat.soak.max.heap.growth", 64);
+    private static final long MAX_THREAD_GROWTH = Long.getLong("chat.soak.max.thread.growth", 32);
+    private static final long MAX_FD_GROWTH = Long.getLong("chat.soak.max.fd.growth", 64);
+    private static final long MAX_CONN_GROWTH = Long.getLong("chat.soak.max.conn.growth", 64);
+    private static final long MAX_P99_MS = Long.getLong("chat.soak.max.p99", 1000);
+
+    private static final String PASSWORD = "soak-pw";
+    private static final String HOST = "localhost";
+
+    private static volatile boolean running = true;
+    private static final Queue<ChatClient> open = new ConcurrentLinkedQueue<>();
+    private static final Latency latency = new Latency();
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+    private static final LongAdder faults = new LongAdder();
+    private static final AtomicInteger nextFaultId = new AtomicInteger();
+    private static int port;
+
+    public static void main(String[] args) throws Exception {
+        for (String p : new String[]{"javax.net.ssl.keyStore", "javax.net.ssl.keyStorePassword",
+                "javax.net.ssl.trustStore", "javax.net.ssl.trustStorePassword"}) {
+            if (System.getProperty(p) == null) {
+                System.err.println("ERROR: " + p + " system property not set!");
+                System.exit(2);
+            }
+        }
+        // keep the real snapshots out of reach; set before the server classes read them
+        Path dir = Files.createTempDirectory("chat-soak");
+        System.setProperty("chat.snapshot.file", dir.resolve("user_state.bin").toString());
+        System.setProperty("chat.state.file", dir.resolve("user_state.txt").toString());
+        System.setProperty("chat.rooms.file", dir.resolve("rooms_state.bin").toString());
+        System.setProperty("chat.pid.file", dir.resolve("server.pid").toString());
+        port = Integer.getInteger("chat.port", 9999);
+
+        Server srv = Server.start(false);
+        srv.setAiModel(SoakHarness::stubModel);
+        System.out.printf("soak: %d s, %d chatters in %d rooms, %d slow readers, %d half-open, %d churners, "
+                        + "%d AI clients, %d abrupt disconnects/min; state in %s%n",
+                DURATION_S, CHATTERS, ROOMS, SLOW_READERS, HALF_OPEN, CHURNERS, AI_CLIENTS, ABRUPT_PER_MIN, dir);
+
+        for (int i = 0; i < CHATTERS; i++) {
+            int id = i;
+            Thread.startVirtualThread(() -> chatter(id));
+        }
+        for (int i = 0; i < SLOW_READERS; i++) {
+            int id = i;
+            Thread.startVirtualThread(() -> slowReader(id));
+        }
+        for (int i = 0; i < HALF_OPEN; i++) {
+            int id = i;
+            Thread.startVirtualThread(() -> halfOpen(id));
+        }
+        for (int i = 0; i < CHURNERS; i++) {
+            int id = i;
+            Thread.startVirtualThread(() -> churner(id));
+        }
+        for (int i = 0; i < AI_CLIENTS; i++) {
+            int id = i;
+            Thread.startVirtualThread(() -> aiClient(id));
+        }
+        if (ABRUPT_PER_MIN > 0) {
+            Thread.startVirtualThread(SoakHarness::abruptDisconnects);
+        }
+
+        boolean passed = monitor(srv);
+        running = false;
+        for (ChatClient c : open) {
+            c.close();
+        }
+        srv.shutdown();
+        System.out.println(passed ? "soak: PASSED" : "soak: FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    // samples every SAMPLE_S seconds; returns false once a metric breaches its bound BREACHES_TO_FAIL times in a row
+    private static boolean monitor(Server srv) throws InterruptedException {
+        System.out.println("   time  heap_mb  threads    fds  conns   sent/s   recv/s  p50_ms  p99_ms  faults");
+        long start = System.nanoTime();
+        long[] baseline = null;
+        int breaches = 0;
+        long lastSent = 0;
+        long lastReceived = 0;
+        while (true) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(SAMPLE_S));
+            long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+
+            System.gc();
+            long heapMb = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20;
+            long threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            long fds = openFileDescriptors();
+            long conns = srv.openConnections();
+            long[] pct = latency.snapshotAndReset();
+            long s = sent.sum();
+            long r = received.sum();
+            System.out.printf("%7d %8d %8d %6d %6d %8.1f %8.1f %7.1f %7.1f %7d%n",
+                    elapsed, heapMb, threads, fds, conns,
+                    (s - lastSent) / (double) SAMPLE_S, (r - lastReceived) / (double) SAMPLE_S,
+                    pct[0] / 1000.0, pct[1] / 1000.0, faults.sum());
+            lastSent = s;
+            lastReceived = r;
+
+            if (elapsed >= WARMUP_S) {
+                long[] now = {heapMb, threads, fds, conns};
+                if (baseline == null) {
+                    baseline = now;
+                }
+                String breach = breach(baseline, now, pct[1]);
+                if (breach == null) {
+                    breaches = 0;
+                } else if (++breaches >= BREACHES_TO_FAIL) {
+                    System.out.println("soak: " + breach + " for " + breaches + " samples in a row");
+                    return false;
+                } else {
+                    System.out.println("soak: " + breach);
+                }
+            }
+            if (elapsed >= DURATION_S) {
+                return true;
+            }
+        }
+    }
+
+    private static String breach(long[] base, long[] now, long p99Micros) {
+        if (now[0] - base[0] > MAX_HEAP_GROWTH_MB) {
+            return "heap grew " + (now[0] - base[0]) + " MB (bound " + MAX_HEAP_GROWTH_MB + ")";
+        }
+        if (now[1] - base[1] > MAX_THREAD_GROWTH) {
+            return "threads grew by " + (now[1] - base[1]) + " (bound " + MAX_THREAD_GROWTH + ")";
+        }
+        if (now[2] >= 0 && now[2] - base[2] > MAX_FD_GROWTH) {
+            return "file descriptors grew by " + (now[2] - base[2]) + " (bound " + MAX_FD_GROWTH + ")";
+        }
+        if (now[3] - base[3] > MAX_CONN_GROWTH) {
+            return "open connections grew by " + (now[3] - base[3]) + " (bound " + MAX_CONN_GROWTH + ")";
+        }
+        if (p99Micros > MAX_P99_MS * 1000) {
+            return "p99 latency " + p99Micros / 1000 + " ms (bound " + MAX_P99_MS + ")";
+        }
+        return null;
+    }
+
+    private static long openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return os instanceof UnixOperatingSystemMXBean unix ? unix.getOpenFileDescriptorCount() : -1;
+    }
+
+    // the AI room backend: a short, variable think time and a canned answer
+    private static String stubModel(String prompt) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(20, 200));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "stub reply to a " + prompt.length() + " character prompt";
+    }
+
+    // a well-behaved user: stays in one room and posts timestamped lines, timing its own echoes
+    private static void chatter(int id) {
+        String user = "soak-chat-" + id;
+        String room = "soak-room-" + (id % ROOMS);
+        ChatClient c = connect(user, new Listener(user));
+        if (c == null) {
+            return;
+        }
+        c.join(room);
+        while (running) {
+            pause(CHAT_INTERVAL_MS / 2 + ThreadLocalRandom.current().nextLong(CHAT_INTERVAL_MS));
+            c.chat("ping " + System.nanoTime());
+            sent.increment();
+        }
+    }
+
+    // joins and leaves rooms in quick succession, and now and then logs out and back in
+    private static void churner(int id) {
+        String user = "soak-churn-" + id;
+        while (running) {
+            ChatClient c = connect(user, new Listener(user));
+            if (c == null) {
+                pause(1000);
+                continue;
+            }
+            for (int i = 0; i < 20 && running; i++) {
+                String room = "soak-room-" + ThreadLocalRandom.current().nextInt(ROOMS);
+                c.join(room);
+                pause(ThreadLocalRandom.current().nextLong(200, 1000));
+                c.leave(room);
+                pause(ThreadLocalRandom.current().nextLong(200, 1000));
+            }
+            c.quit().orTimeout(5, TimeUnit.SECONDS).exceptionally(e -> null).join();
+            open.remove(c);
+        }
+    }
+
+    // talks to an AI room, so every line also costs a (stub) model call
+    private static void aiClient(int id) {
+        String user = "soak-ai-" + id;
+        ChatClient c = connect(user, new Listener(user));
+        if (c == null) {
+            return;
+        }
+        c.join("AI:soak-ai-room-" + (id % 2));
+        while (running) {
+            // the default AI limit is one reply per five seconds per user
+            pause(ThreadLocalRandom.current().nextLong(5_000, 10_000));
+            c.chat("ping " + System.nanoTime() + " what should I test next?");
+            sent.increment();
+        }
+    }
+
+    // logs in and joins the busiest room, then reads one line every 100 ms, far behind the room's traffic
+    private static void slowReader(int id) {
+        while (running) {
+            try (SSLSocket s = rawLogin("soak-slow-" + id, "soak-room-0")) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                while (running && in.readLine() != null) {
+                    pause(100);
+                }
+            } catch (IOException e) {
+                faults.increment();
+                pause(1000);
+            }
+        }
+    }
+
+    // logs in, then goes silent without closing, like a peer that vanished; after a minute the socket
+    // is reset, as TCP keepalive would eventually do, and a new one takes its place
+    private static void halfOpen(int id) {
+        while (running) {
+            try {
+                SSLSocket s = rawLogin("soak-half-" + id, "soak-room-" + (id % ROOMS));
+                faults.increment();
+                pause(60_000 + ThreadLocalRandom.current().nextLong(10_000));
+                reset(s);
+            } catch (IOException e) {
+                pause(1000);
+            }
+        }
+    }
+
+    // connections that post a line and then drop with a TCP reset instead of /quit
+    private static void abruptDisconnects() {
+        long gap = TimeUnit.MINUTES.toMillis(1) / ABRUPT_PER_MIN;
+        while (running) {
+            pause(gap);
+            Thread.startVirtualThread(() -> {
+                String user = "soak-abrupt-" + nextFaultId.getAndIncrement() % 50;
+                try {
+                    SSLSocket s = rawLogin(user, "soak-room-" + ThreadLocalRandom.current().nextInt(ROOMS));
+                    new PrintWriter(s.getOutputStream(), true).println("gone in a moment");
+                    pause(ThreadLocalRandom.current().nextLong(500));
+                    reset(s);
+                    faults.increment();
+                } catch (IOException ignored) {
+                }
+            });
+        }
+    }
+
+    private static ChatClient connect(String user, Listener listener) {
+        ChatClient c = new ChatClient(HOST, port, listener);
+        try {
+            c.login(user, PASSWORD).orTimeout(60, TimeUnit.SECONDS).join();
+        } catch (RuntimeException e) {
+            System.out.println("soak: login failed for " + user + ": " + e.getCause());
+            c.close();
+            return null;
+        }
+        open.add(c);
+        return c;
+    }
+
+    private static SSLSocket rawLogin(String user, String room) throws IOException {
+        SSLSocket s = (SSLSocket) SSLSocketFactory.getDefault().createSocket(HOST, port);
+        ChatClient.configureSocket(s);
+        s.startHandshake();
+        PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+        out.println("/login " + user + " " + PASSWORD);
+        out.println("/join " + room);
+        return s;
+    }
+
+    // closes with SO_LINGER 0, so the server sees a reset rather than an orderly close
+    private static void reset(SSLSocket s) {
+        try {
+            s.setSoLinger(true, 0);
+            s.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void pause(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // counts deliveries and times the echo of our own pings
+    private static class Listener implements ChatClient.Listener {
+        private final String marker;
+
+        Listener(String user) {
+            this.marker = "] " + user + ": ping ";
+        }
+
+        @Override
+        public void onMessage(String message) {
+            received.increment();
+            int at = message.indexOf(marker);
+            if (at < 0) {
+                return;
+            }
+            int from = at + marker.length();
+            int end = message.indexOf(' ', from);
+            try {
+                long sentAt = Long.parseLong(end < 0 ? message.substring(from) : message.substring(from, end));
+                latency.record((System.nanoTime() - sentAt) / 1_000);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    // power-of-two microsecond buckets; percentiles are reported as the bucket's upper edge
+    private static class Latency {
+        private final AtomicLongArray buckets = new AtomicLongArray(40);
+
+        void record(long micros) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(1, micros)));
+        }
+
+        long[] snapshotAndReset() {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.getAndSet(i, 0);
+                total += counts[i];
+            }
+            return new long[]{percentile(counts, total, 0.50), percentile(counts, total, 0.99)};
+        }
+
+        private static long percentile(long[] counts, long total, double q) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * q);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (counts.length - 1);
+        }
+    }
+}
@@ -2,24 +2,47 @@ import java.time.Instant;
 import java.util.UUID;
 
 public class TokenManager {
-    private final String tokenString;
-    private final Instant expirationTime;
+    // the token is a random UUID kept as its two halves
+    private final long mostSigBits;
+    private final long leastSigBits;
+    private final long expirationEpochSecond;
 
     public TokenManager(long lifetimeSeconds) {
-        this.tokenString = UUID.randomUUID().toString();
-        this.expirationTime = Instant.now().plusSeconds(lifetimeSeconds);
+        this(UUID.randomUUID(), Instant.now().getEpochSecond() + lifetimeSeconds);
+    }
+
+    private TokenManager(UUID id, long expirationEpochSecond) {
+        this(id.getMostSignificantBits(), id.getLeastSignificantBits(), expirationEpochSecond);
+    }
+
+    public TokenManager(long mostSigBits, long leastSigBits, long expirationEpochSecond) {
+        this.mostSigBits = mostSigBits;
+        this.leastSigBits = leastSigBits;
+        this.expirationEpochSecond = expirationEpochSecond;
     }
 
     public String getTokenString() {
-        return tokenString;
+        return new UUID(mostSigBits, leastSigBits).toString();
+    }
+
+    public long getMostSigBits() {
+        return mostSigBits;
+    }
+
+    public long getLeastSigBits() {
+        return leastSigBits;
     }
 
     public boolean isExpired() {
-        return Instant.now().isAfter(expirationTime);
+        return Instant.now().getEpochSecond() >= expirationEpochSecond;
+    }
+
+    public long getExpirationEpochSecond() {
+        return expirationEpochSecond;
     }
 
     public long getSecondsUntilExpiration() {
-        long secs = expirationTime.getEpochSecond() - Instant.now().getEpochSecond();
+        long secs = expirationEpochSecond - Instant.now().getEpochSecond();
         return secs > 0 ? secs : 0;
     }
 }
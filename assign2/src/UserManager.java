@@ -1,34 +1,190 @@
 import java.io.*;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 public class UserManager {
+    private static final int[] NO_ROOMS = new int[0];
+
+    // kept deliberately small: one of these exists for every account
     private static class User {
         final String username;
-        final String passwordHash;
-        TokenManager token;
-        ChatRoom room;
+        byte[] passwordHash;    // see CredentialVerifier for the format
+        long tokenHi;
+        long tokenLo;
+        long tokenExpiry;   // epoch seconds, 0 when the user has no token
+        int[] rooms = NO_ROOMS; // sorted indexes into roomNames
+        long version;       // bumped by every token or room change; the highest wins across the cluster
 
-        User(String name, String pass) {
+        User(String name, byte[] pass) {
             username = name;
             passwordHash = pass;
-            room = null;
+        }
+
+        boolean hasToken() {
+            return tokenExpiry != 0;
+        }
+
+        TokenManager token() {
+            return new TokenManager(tokenHi, tokenLo, tokenExpiry);
+        }
+    }
+
+    // open-addressing table from token bits to owner, so live tokens cost no objects of their own
+    private static class TokenIndex {
+        private long[] his;
+        private long[] los;
+        private User[] owners;
+        private int size;
+
+        TokenIndex() {
+            allocate(16);
+        }
+
+        private void allocate(int capacity) {
+            his = new long[capacity];
+            los = new long[capacity];
+            owners = new User[capacity];
+            size = 0;
+        }
+
+        // grows ahead of a bulk load so it never rehashes midway
+        void ensureCapacity(int expected) {
+            int capacity = owners.length;
+            while (capacity < expected * 2) {
+                capacity <<= 1;
+            }
+            if (capacity != owners.length) {
+                rehash(capacity);
+            }
+        }
+
+        private int slot(long hi, long lo) {
+            long h = (hi * 0x9E3779B97F4A7C15L) ^ lo;
+            h ^= h >>> 32;
+            return (int) h & (owners.length - 1);
+        }
+
+        User get(long hi, long lo) {
+            int mask = owners.length - 1;
+            for (int i = slot(hi, lo); owners[i] != null; i = (i + 1) & mask) {
+                if (his[i] == hi && los[i] == lo) {
+                    return owners[i];
+                }
+            }
+            return null;
+        }
+
+        void put(long hi, long lo, User owner) {
+            if ((size + 1) * 2 > owners.length) {
+                rehash(owners.length << 1);
+            }
+            int mask = owners.length - 1;
+            int i = slot(hi, lo);
+            while (owners[i] != null && (his[i] != hi || los[i] != lo)) {
+                i = (i + 1) & mask;
+            }
+            if (owners[i] == null) {
+                size++;
+            }
+            his[i] = hi;
+            los[i] = lo;
+            owners[i] = owner;
+        }
+
+        void remove(long hi, long lo) {
+            int mask = owners.length - 1;
+            int i = slot(hi, lo);
+            while (owners[i] != null && (his[i] != hi || los[i] != lo)) {
+                i = (i + 1) & mask;
+            }
+            if (owners[i] == null) {
+                return;
+            }
+            owners[i] = null;
+            size--;
+            // shift later entries of the probe run back so lookups never stop at the hole
+            for (int j = (i + 1) & mask; owners[j] != null; j = (j + 1) & mask) {
+                int home = slot(his[j], los[j]);
+                boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+                if (movable) {
+                    his[i] = his[j];
+                    los[i] = los[j];
+                    owners[i] = owners[j];
+                    owners[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        void clear() {
+            allocate(16);
+        }
+
+        private void rehash(int capacity) {
+            long[] oldHis = his;
+            long[] oldLos = los;
+            User[] oldOwners = owners;
+            allocate(capacity);
+            for (int i = 0; i < oldOwners.length; i++) {
+                if (oldOwners[i] != null) {
+                    put(oldHis[i], oldLos[i], oldOwners[i]);
+                }
+            }
         }
     }
 
+    // snapshot layout (big-endian):
+    //   int magic, int version,
+    //   int roomCount, roomCount x (u16 length, utf-8 name),
+    //   int userCount, userCount x (u16 length, utf-8 name, u8 length, hash,
+    //                                long tokenHi, long tokenLo, long tokenExpiry, rooms[, long version])
+    // where rooms is "u16 count, count x int roomId" since version 2 and a single int roomId (-1 for none) in version 1,
+    // and the session version is there since version 3
+    private static final int SNAPSHOT_MAGIC = 0x43505553; // "CPUS"
+    private static final int SNAPSHOT_VERSION = 3;
+    // names and room lists have u16 lengths in the snapshot, so both are capped where they come in
+    public static final int MAX_NAME_BYTES = Math.min(0xffff, Integer.getInteger("chat.name.max", 128));
+    private static final int MAX_SAVED_ROOMS = Math.min(0xffff, Integer.getInteger("chat.rooms.per.user", 1000));
+    // replicated changes are written together at most this often instead of one snapshot per event
+    private static final long REPLICA_FLUSH_MS = Long.getLong("chat.replication.flush", 1000);
+
     private final Map<String, User> users = new HashMap<>();
+    // live token -> owner, kept in step with the users' token fields so validation is one lookup
+    private final TokenIndex tokens = new TokenIndex();
+    // saved rooms are interned: users only hold the index
+    private final List<String> roomNames = new ArrayList<>();
+    private final Map<String, Integer> roomIds = new HashMap<>();
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private final String STATE_FILE = "user_state.txt";
+    private final CredentialVerifier verifier = new CredentialVerifier();
+    private final Lock saveLock = new ReentrantLock();
+    private final String STATE_FILE = System.getProperty("chat.state.file", "user_state.txt");
+    private final String SNAPSHOT_FILE = System.getProperty("chat.snapshot.file", "user_state.bin");
     private final long TOKEN_LIFETIME = 60L * 60L * 24L * 3L;
     private Server server;
+    private Consumer<String> replicator;
+    private final AtomicBoolean replicaDirty = new AtomicBoolean();
+    // set once a draining server has written its last snapshot; the process taking over owns the file then
+    private volatile boolean handedOver;
 
     public UserManager() {
         loadState();
@@ -39,182 +195,383 @@ public class UserManager {
         this.server = server;
     }
 
-    private String sha256(String in) {
-        try {
-            var md = MessageDigest.getInstance("SHA-256");
-            var bs = md.digest(in.getBytes(StandardCharsets.UTF_8));
-            var sb = new StringBuilder();
-            for (byte b : bs) {
-                String h = Integer.toHexString(0xff & b);
-                if (h.length() == 1) {
-                    sb.append('0');
-                }
-                sb.append(h);
+    // receives every session change so it can be shipped to the other servers
+    public void setReplicator(Consumer<String> replicator) {
+        this.replicator = replicator;
+        Thread t = new Thread(this::replicaFlushLoop, "replica-flush");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // a resync applies one event per user; saving each one would rewrite the snapshot N times
+    private void replicaFlushLoop() {
+        while (true) {
+            try {
+                Thread.sleep(REPLICA_FLUSH_MS);
+            } catch (InterruptedException e) {
+                return;
             }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            if (replicaDirty.getAndSet(false)) {
+                saveState();
+            }
+        }
+    }
+
+    private void replicate(String event) {
+        if (replicator != null) {
+            replicator.accept(event);
+        }
+    }
+
+    private int roomId(String name) {
+        Integer id = roomIds.get(name);
+        if (id == null) {
+            id = roomNames.size();
+            roomNames.add(name);
+            roomIds.put(name, id);
+        }
+        return id;
+    }
+
+    private static int[] withRoom(int[] rooms, int id) {
+        int i = Arrays.binarySearch(rooms, id);
+        if (i >= 0) return rooms;
+        i = -i - 1;
+        int[] grown = new int[rooms.length + 1];
+        System.arraycopy(rooms, 0, grown, 0, i);
+        grown[i] = id;
+        System.arraycopy(rooms, i, grown, i + 1, rooms.length - i);
+        return grown;
+    }
+
+    private static int[] withoutRoom(int[] rooms, int id) {
+        int i = Arrays.binarySearch(rooms, id);
+        if (i < 0) return rooms;
+        if (rooms.length == 1) return NO_ROOMS;
+        int[] shrunk = new int[rooms.length - 1];
+        System.arraycopy(rooms, 0, shrunk, 0, i);
+        System.arraycopy(rooms, i + 1, shrunk, i, rooms.length - i - 1);
+        return shrunk;
+    }
+
+    private void setToken(User user, long hi, long lo, long expiry) {
+        if (user.hasToken()) {
+            tokens.remove(user.tokenHi, user.tokenLo);
+        }
+        user.tokenHi = hi;
+        user.tokenLo = lo;
+        user.tokenExpiry = expiry;
+        if (expiry != 0) {
+            tokens.put(hi, lo, user);
         }
     }
 
     private void loadState() {
-        File stateFile = new File(STATE_FILE);
-        if (!stateFile.exists()) {
-            try (PrintWriter w = new PrintWriter(new FileWriter(stateFile))) {
-                String aHash = sha256("admin123");
-                w.printf("admin:%s:null:null:null%n", aHash);
-                String gHash = sha256("guest123");
-                w.printf("guest:%s:null:null:null%n", gHash);
-                System.out.println("Initialized " + STATE_FILE + " with default users");
-            } catch (IOException e) {
-                System.err.println("Could not create " + STATE_FILE + ": " + e.getMessage());
+        long start = System.nanoTime();
+        File snapshot = new File(SNAPSHOT_FILE);
+        File legacy = new File(STATE_FILE);
+        lock.writeLock().lock();
+        try {
+            users.clear();
+            tokens.clear();
+            roomNames.clear();
+            roomIds.clear();
+            if (snapshot.exists()) {
+                loadSnapshot(snapshot.toPath());
+            } else if (legacy.exists()) {
+                loadLegacyState(legacy);
+                saveState();
+                Log.info("Converted " + STATE_FILE + " to " + SNAPSHOT_FILE);
+            } else {
+                users.put("admin", new User("admin", verifier.hash("admin123")));
+                users.put("guest", new User("guest", verifier.hash("guest123")));
+                saveState();
+                Log.info("Initialized " + SNAPSHOT_FILE + " with default users");
             }
+            Log.log(Log.Level.INFO, "Loaded " + users.size() + " users", null, null, System.nanoTime() - start);
+        } catch (IOException | RuntimeException e) {
+            // carrying on with a partial table would overwrite the snapshot with it at the next save
+            users.clear();
+            tokens.clear();
+            throw new IllegalStateException("Cannot load user state from "
+                    + (snapshot.exists() ? SNAPSHOT_FILE : STATE_FILE) + " (" + e
+                    + "); restore it from a backup or move it aside to start with the default users", e);
+        } finally {
+            lock.writeLock().unlock();
         }
-        try (BufferedReader r = new BufferedReader(new FileReader(stateFile))) {
-            String line;
-            lock.writeLock().lock();
-            try {
-                users.clear();
-                while ((line = r.readLine()) != null) {
-                    line = line.trim();
-                    if (line.isEmpty() || line.startsWith("#")) {
-                        continue;
-                    }
-                    // format: username:passwordHash:tokenString:expiration:roomName
-                    String[] p = line.split(":", 5);
-                    if (p.length != 5) {
-                        System.err.println("Skipping invalid state line: " + line);
-                        continue;
-                    }
-                    User user = new User(p[0], p[1]);
-                    // token
-                    if (!"null".equals(p[2]) && !p[2].isEmpty()) {
-                        long exp = Long.parseLong(p[3]);
-                        if (exp > Instant.now().getEpochSecond()) {
-                            user.token = createTokenFromParts(p[2], exp);
+    }
+
+    private void loadSnapshot(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException(path + " is not a user snapshot");
+            }
+            int version = buf.getInt();
+            if (version < 1 || version > SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + path);
+            }
+            int roomCount = buf.getInt();
+            for (int i = 0; i < roomCount; i++) {
+                roomId(readString(buf));
+            }
+            long now = Instant.now().getEpochSecond();
+            int userCount = buf.getInt();
+            tokens.ensureCapacity(userCount);
+            for (int i = 0; i < userCount; i++) {
+                String name = readString(buf);
+                byte[] hash = new byte[buf.get() & 0xff];
+                buf.get(hash);
+                User user = new User(name, hash);
+                long hi = buf.getLong();
+                long lo = buf.getLong();
+                long exp = buf.getLong();
+                if (exp > now) {
+                    setToken(user, hi, lo, exp);
+                }
+                if (version == 1) {
+                    int room = buf.getInt();
+                    user.rooms = room == -1 ? NO_ROOMS : new int[]{checkRoomId(room, path)};
+                } else {
+                    int count = buf.getShort() & 0xffff;
+                    if (count > 0) {
+                        user.rooms = new int[count];
+                        for (int r = 0; r < count; r++) {
+                            user.rooms[r] = checkRoomId(buf.getInt(), path);
                         }
                     }
-                    if (!"null".equals(p[4]) && !p[4].isEmpty()) {
-                        user.room = new ChatRoom(p[4]);
+                }
+                if (version >= 3) {
+                    user.version = buf.getLong();
+                }
+                users.put(name, user);
+            }
+            if (buf.hasRemaining()) {
+                throw new IOException(buf.remaining() + " unexpected bytes after the last user in " + path);
+            }
+        }
+    }
+
+    // format: username:passwordHash:tokenString:expiration:roomName
+    private void loadLegacyState(File stateFile) throws IOException {
+        HexFormat hex = HexFormat.of();
+        long now = Instant.now().getEpochSecond();
+        try (BufferedReader r = new BufferedReader(new FileReader(stateFile))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] p = line.split(":", 5);
+                if (p.length != 5) {
+                    Log.warn("Skipping invalid state line: " + line);
+                    continue;
+                }
+                User user = new User(p[0], hex.parseHex(p[1]));
+                if (!"null".equals(p[2]) && !p[2].isEmpty()) {
+                    long exp = Long.parseLong(p[3]);
+                    if (exp > now) {
+                        UUID id = UUID.fromString(p[2]);
+                        setToken(user, id.getMostSignificantBits(), id.getLeastSignificantBits(), exp);
                     }
-                    users.put(user.username, user);
                 }
-                System.out.println("Loaded " + users.size() + " users from " + STATE_FILE);
-            } finally {
-                lock.writeLock().unlock();
+                if (!"null".equals(p[4]) && !p[4].isEmpty()) {
+                    user.rooms = new int[]{roomId(p[4])};
+                }
+                users.put(user.username, user);
             }
-        } catch (IOException e) {
-            System.err.println("Error reading " + STATE_FILE + ": " + e.getMessage());
         }
     }
 
-    private TokenManager createTokenFromParts(String tokenString, long expiryEpoch) {
-        try {
-            Constructor<TokenManager> constructor = TokenManager.class.getDeclaredConstructor(long.class);
-            TokenManager tm = constructor.newInstance(0L);
+    private int checkRoomId(int id, Path path) throws IOException {
+        if (id < 0 || id >= roomNames.size()) {
+            throw new IOException("Room id " + id + " out of range in " + path);
+        }
+        return id;
+    }
 
-            Field tokenField = TokenManager.class.getDeclaredField("tokenString");
-            tokenField.setAccessible(true);
-            tokenField.set(tm, tokenString);
+    private static String readString(MappedByteBuffer buf) {
+        byte[] b = new byte[buf.getShort() & 0xffff];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
 
-            Field expiresAtField = TokenManager.class.getDeclaredField("expirationTime");
-            expiresAtField.setAccessible(true);
-            expiresAtField.set(tm, Instant.ofEpochSecond(expiryEpoch));
+    // a longer string would wrap its length and leave a snapshot that cannot be read back
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        if (b.length > 0xffff) {
+            throw new IOException("a name of " + b.length + " bytes does not fit the snapshot");
+        }
+        out.writeShort(b.length);
+        out.write(b);
+    }
 
-            return tm;
-        } catch (Exception e) {
-            System.err.println("Error creating token from parts: " + e.getMessage());
-            return null;
+    // the last write of this process: later saves, including the shutdown hook's, leave the file alone
+    public void handOver() {
+        lock.readLock().lock();
+        saveLock.lock();
+        try {
+            saveState();
+            handedOver = true;
+        } finally {
+            saveLock.unlock();
+            lock.readLock().unlock();
         }
     }
 
     public void saveState() {
+        Path target = Paths.get(SNAPSHOT_FILE);
+        Path tmp = Paths.get(SNAPSHOT_FILE + ".tmp");
+        // readers may save concurrently; only one of them writes the temp file at a time
         lock.readLock().lock();
-        try (PrintWriter w = new PrintWriter(new FileWriter(STATE_FILE))) {
-            for (User user : users.values()) {
-                String tok = (user.token == null ? "null" : user.token.getTokenString());
-                long expSec = 0;
-                if (user.token != null) {
-                    try {
-                        Field expiresAtField = TokenManager.class.getDeclaredField("expirationTime");
-                        expiresAtField.setAccessible(true);
-                        Instant expiresAt = (Instant) expiresAtField.get(user.token);
-                        expSec = expiresAt.getEpochSecond();
-                    } catch (Exception e) {
-                        System.err.println("Error getting token expiry: " + e.getMessage());
+        saveLock.lock();
+        try {
+            if (handedOver) {
+                return;
+            }
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(roomNames.size());
+                for (String room : roomNames) {
+                    writeString(out, room);
+                }
+                out.writeInt(users.size());
+                for (User user : users.values()) {
+                    writeString(out, user.username);
+                    out.writeByte(user.passwordHash.length);
+                    out.write(user.passwordHash);
+                    out.writeLong(user.tokenHi);
+                    out.writeLong(user.tokenLo);
+                    out.writeLong(user.tokenExpiry);
+                    if (user.rooms.length > 0xffff) {
+                        throw new IOException(user.username + " has too many saved rooms for the snapshot");
+                    }
+                    out.writeShort(user.rooms.length);
+                    for (int room : user.rooms) {
+                        out.writeInt(room);
                     }
+                    out.writeLong(user.version);
                 }
-                String roomName = (user.room == null ? "null" : user.room.getChatRoomName());
-                w.printf("%s:%s:%s:%d:%s%n",
-                        user.username,
-                        user.passwordHash,
-                        tok,
-                        expSec,
-                        roomName
-                );
             }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-            System.err.println("Error writing " + STATE_FILE + ": " + e.getMessage());
+            Log.error("Error writing " + SNAPSHOT_FILE + ": " + e.getMessage());
         } finally {
+            saveLock.unlock();
             lock.readLock().unlock();
         }
     }
 
+    // each path hashes the password once; both throw RejectedExecutionException when the auth pool is full
     public TokenManager authenticateOrRegister(String user, String pass) {
-        TokenManager tm = authenticate(user, pass);
-        if (tm != null) {
-            return tm;
+        if (userExists(user)) {
+            return authenticate(user, pass);
         }
-        if (!registerUser(user, pass)) {
-            return null;
+        if (registerUser(user, pass)) {
+            return issueToken(user);
         }
+        // someone registered the name first
         return authenticate(user, pass);
     }
 
     public TokenManager authenticate(String user, String pass) {
-        String hash = sha256(pass);
+        byte[] stored;
+        lock.readLock().lock();
+        try {
+            User currentUser = users.get(user);
+            stored = currentUser == null ? null : currentUser.passwordHash;
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (stored == null) {
+            return null;
+        }
+        byte[] current = verifier.verify(user, pass, stored);
+        if (current == null) {
+            return null;
+        }
+        if (current != stored) {
+            upgradeHash(user, stored, current);
+        }
+        return issueToken(user);
+    }
+
+    // replaces a legacy or weaker hash after a successful login
+    private void upgradeHash(String user, byte[] old, byte[] fresh) {
         lock.writeLock().lock();
         try {
             User currentUser = users.get(user);
-            if (currentUser != null && currentUser.passwordHash.equals(hash)) {
-                if (currentUser.token == null || currentUser.token.isExpired()) {
-                    currentUser.token = new TokenManager(TOKEN_LIFETIME);
-                }
-                return currentUser.token;
+            if (currentUser == null || currentUser.passwordHash != old) {
+                return;
             }
+            currentUser.passwordHash = fresh;
+            saveState();
         } finally {
             lock.writeLock().unlock();
         }
-        return null;
+        replicate("PASS " + user + " " + HexFormat.of().formatHex(fresh));
     }
 
-    public void invalidateToken(String user) {
+    private TokenManager issueToken(String user) {
+        TokenManager token;
+        String event = null;
         lock.writeLock().lock();
         try {
             User currentUser = users.get(user);
-            if (currentUser != null) {
-                currentUser.token = null;
+            if (currentUser == null) {
+                return null;
+            }
+            if (!currentUser.hasToken() || currentUser.token().isExpired()) {
+                TokenManager fresh = new TokenManager(TOKEN_LIFETIME);
+                setToken(currentUser, fresh.getMostSigBits(), fresh.getLeastSigBits(),
+                        fresh.getExpirationEpochSecond());
+                event = sessionChanged(currentUser);
+            }
+            token = currentUser.token();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (event != null) {
+            replicate(event);
+        }
+        return token;
+    }
 
-                if (currentUser.room != null) {
-                    currentUser.room = null;
-                }
+    public void invalidateToken(String user) {
+        String event = null;
+        lock.writeLock().lock();
+        try {
+            User currentUser = users.get(user);
+            if (currentUser != null && (currentUser.hasToken() || currentUser.rooms.length > 0)) {
+                setToken(currentUser, 0, 0, 0);
+                currentUser.rooms = NO_ROOMS;
+                event = sessionChanged(currentUser);
                 saveState();
             }
         }
         finally {
             lock.writeLock().unlock();
         }
+        if (event != null) {
+            replicate(event);
+        }
     }
 
     public String validateToken(String tokenStr) {
+        UUID id;
+        try {
+            id = UUID.fromString(tokenStr);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
         lock.readLock().lock();
         try {
-            for (User currentUser : users.values()) {
-                if (currentUser.token != null
-                        && currentUser.token.getTokenString().equals(tokenStr)
-                        && !currentUser.token.isExpired()) {
-                    return currentUser.username;
-                }
+            User currentUser = tokens.get(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            if (currentUser != null && currentUser.tokenExpiry > Instant.now().getEpochSecond()) {
+                return currentUser.username;
             }
         } finally {
             lock.readLock().unlock();
@@ -222,44 +579,213 @@ public class UserManager {
         return null;
     }
 
-    public void setRoom(String user, ChatRoom room) {
+    public static boolean fitsName(String name) {
+        return name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_BYTES;
+    }
+
+    /** Saves the room for the user; false when they already have the most saved rooms allowed. */
+    public boolean addRoom(String user, String roomName) {
+        String event = null;
         lock.writeLock().lock();
         try {
             User currentUser = users.get(user);
             if (currentUser != null) {
-                currentUser.room = room;
-                saveState();
+                Integer known = roomIds.get(roomName);
+                boolean saved = known != null && Arrays.binarySearch(currentUser.rooms, known) >= 0;
+                if (!saved && currentUser.rooms.length >= MAX_SAVED_ROOMS) {
+                    return false;
+                }
+                int[] rooms = withRoom(currentUser.rooms, roomId(roomName));
+                if (rooms != currentUser.rooms) {
+                    currentUser.rooms = rooms;
+                    event = sessionChanged(currentUser);
+                    saveState();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (event != null) {
+            replicate(event);
+        }
+        return true;
+    }
+
+    public void removeRoom(String user, String roomName) {
+        String event = null;
+        lock.writeLock().lock();
+        try {
+            User currentUser = users.get(user);
+            Integer id = roomIds.get(roomName);
+            if (currentUser != null && id != null) {
+                int[] rooms = withoutRoom(currentUser.rooms, id);
+                if (rooms != currentUser.rooms) {
+                    currentUser.rooms = rooms;
+                    event = sessionChanged(currentUser);
+                    saveState();
+                }
             }
         } finally {
             lock.writeLock().unlock();
         }
+        if (event != null) {
+            replicate(event);
+        }
     }
 
-    public ChatRoom getChatRoom(String user) {
+    public List<String> getRoomNames(String user) {
         lock.readLock().lock();
         try {
             User currentUser = users.get(user);
-            return (currentUser == null ? null : currentUser.room);
+            if (currentUser == null) {
+                return List.of();
+            }
+            List<String> names = new ArrayList<>(currentUser.rooms.length);
+            for (int id : currentUser.rooms) {
+                names.add(roomNames.get(id));
+            }
+            return names;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String authSummary() {
+        return verifier.summary();
+    }
+
+    public boolean userExists(String user) {
+        lock.readLock().lock();
+        try {
+            return users.containsKey(user);
         } finally {
             lock.readLock().unlock();
         }
     }
 
     public boolean registerUser(String username, String password) {
-        if (username == null || username.trim().isEmpty()
+        if (username == null || username.trim().isEmpty() || !fitsName(username)
                 || password == null || password.trim().isEmpty()) {
             return false;
         }
-        String hash = sha256(password);
+        byte[] hash = verifier.hash(password);
         lock.writeLock().lock();
         try {
             if (users.containsKey(username)) return false;
             User currentUser = new User(username, hash);
             users.put(username, currentUser);
             saveState();
-            return true;
         } finally {
             lock.writeLock().unlock();
         }
+        verifier.remember(username, password, hash);
+        replicate("USER " + username + " " + HexFormat.of().formatHex(hash));
+        return true;
+    }
+
+    // under the write lock: a local token or room change, replicated as the user's whole session state
+    private String sessionChanged(User user) {
+        user.version++;
+        return sessionEvent(user);
+    }
+
+    // SESSION <user> <version> <token or -> <expiry> <saved rooms, one per line>
+    private String sessionEvent(User user) {
+        List<String> rooms = new ArrayList<>(user.rooms.length);
+        for (int id : user.rooms) {
+            rooms.add(roomNames.get(id));
+        }
+        String token = user.hasToken() ? user.token().getTokenString() : "-";
+        return "SESSION " + user.username + " " + user.version + " " + token + " " + user.tokenExpiry + " "
+                + String.join("\n", rooms);
+    }
+
+    // every event needed to bring a fresh replica up to date
+    public List<String> replicationSnapshot() {
+        List<String> events = new ArrayList<>();
+        HexFormat hex = HexFormat.of();
+        lock.readLock().lock();
+        try {
+            for (User u : users.values()) {
+                String hash = hex.formatHex(u.passwordHash);
+                events.add("USER " + u.username + " " + hash);
+                // USER never replaces an existing account, so a peer that missed a rehash gets it from PASS
+                events.add("PASS " + u.username + " " + hash);
+                if (u.version > 0) {
+                    events.add(sessionEvent(u));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return events;
+    }
+
+    // events are idempotent and sessions are versioned, so replaying a snapshot, receiving one twice or
+    // getting them out of order is harmless: a logout or a left room is never undone by an older state
+    public void applyReplicated(String event) {
+        String[] p = event.split(" ", 3);
+        if (p.length != 3) {
+            Log.warn("Skipping invalid replication event: " + event);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (p[0].equals("USER")) {
+                if (!users.containsKey(p[1])) {
+                    users.put(p[1], new User(p[1], HexFormat.of().parseHex(p[2])));
+                    replicaDirty.set(true);
+                }
+                return;
+            }
+            User currentUser = users.get(p[1]);
+            if (currentUser == null) {
+                return;
+            }
+            switch (p[0]) {
+                case "PASS" -> {
+                    byte[] hash = HexFormat.of().parseHex(p[2]);
+                    // snapshots flow both ways, so only a stronger hash replaces ours
+                    if (CredentialVerifier.supersedes(hash, currentUser.passwordHash)) {
+                        currentUser.passwordHash = hash;
+                        verifier.forget(p[1]);
+                        replicaDirty.set(true);
+                    }
+                }
+                case "SESSION" -> applySession(currentUser, p[2]);
+                default -> Log.warn("Unknown replication event: " + p[0]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // the higher version wins; two changes made concurrently on different nodes share a version, and then
+    // the greater event text wins everywhere, so every node settles on the same session
+    private void applySession(User user, String fields) {
+        String[] f = fields.split(" ", 4);
+        long version = Long.parseLong(f[0]);
+        if (version < user.version) {
+            return;
+        }
+        String event = "SESSION " + user.username + " " + fields;
+        if (version == user.version && event.compareTo(sessionEvent(user)) <= 0) {
+            return;
+        }
+        if (f[1].equals("-")) {
+            setToken(user, 0, 0, 0);
+        } else {
+            UUID id = UUID.fromString(f[1]);
+            setToken(user, id.getMostSignificantBits(), id.getLeastSignificantBits(), Long.parseLong(f[2]));
+        }
+        int[] rooms = NO_ROOMS;
+        if (!f[3].isEmpty()) {
+            for (String room : f[3].split("\n")) {
+                rooms = withRoom(rooms, roomId(room));
+            }
+        }
+        user.rooms = rooms;
+        user.version = version;
+        replicaDirty.set(true);
     }
-}
\ No newline at end of file
+}